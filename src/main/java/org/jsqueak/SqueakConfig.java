@@ -21,6 +21,78 @@ public class SqueakConfig {
         public static final boolean PRIMITIVE_LOGGING = true;
     }
 
+    /**
+     * Config for the linked heap, a pre-installed copy of the object graph
+     * written after booting from an image, used to speed up the next start
+     */
+    public static class HeapCache {
+
+        public static final boolean ENABLED = true;
+
+        public static final String DIRECTORY = System.getProperty("java.io.tmpdir");
+    }
+
+    /**
+     * Config for writing snapshots of the image (primitive 97)
+     */
+    public static class Snapshot {
+
+        // Size of the direct buffer the image is encoded into before it is written to the file
+        public static final int BUFFER_SIZE = 1 << 20;
+
+        // Copy the object memory and write it on a background thread, so the interpreter
+        // only pauses for the copy; costs a second copy of the heap while writing
+        public static final boolean BACKGROUND = true;
+
+        // Save only the objects changed since the last snapshot, as a delta of the last full one
+        public static final boolean DELTAS = true;
+
+        // A full snapshot is written after this many deltas, which bounds the replay at startup
+        public static final int MAX_DELTAS = 16;
+    }
+
+    /**
+     * Config for the display
+     */
+    public static class Display {
+
+        // Let the screen use the bits of the Squeak Display itself instead of a copy, which saves
+        // copying the changed area after each BitBlt onto the display, at the price of the screen
+        // possibly showing a drawing half done
+        public static final boolean SHARE_BITMAP = false;
+
+        // The screen is repainted when it has changed, but at most this many times a second
+        public static final int MAX_FPS = 30;
+
+        // Repaint at once, regardless of MAX_FPS, when the screen changes shortly after user input
+        public static final boolean LATENCY_MODE = true;
+
+        // How long after an input event a change of the screen counts as its effect
+        public static final int INPUT_LATENCY_MILLIS = 100;
+    }
+
+    /**
+     * Install objects read from an image on first access instead of all at once while loading.
+     * Shortens the startup, but the image data of every object not touched yet is kept alive
+     * until the last one is installed.
+     */
+    public static final boolean LAZY_INSTALL = false;
+
+    /**
+     * Keep weak lists of the instances of each class for someInstance and nextInstance, so that
+     * enumerating the instances of a class does not walk the whole object table. The lists are
+     * built on first use, which installs every object not installed lazily yet. They cost a second
+     * weak reference per object, and someInstance and nextInstance then answer the instances in the
+     * order they were registered instead of memory order.
+     */
+    public static final boolean INSTANCE_INDEX = false;
+
+    /**
+     * Split large BitBlt operations into bands of rows done on the common ForkJoin pool,
+     * if there is more than one processor and the rows don't depend on each other.
+     */
+    public static final boolean PARALLEL_BITBLT = true;
+
     public static final int LOGGING_MAX_LEN = 300;
 
     /**
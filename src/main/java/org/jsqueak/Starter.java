@@ -68,6 +68,7 @@ public class Starter {
                 : locateStartableImage();
         SqueakVM vm = new SqueakVM(img);
         SqueakVM.INSTANCE = vm;
+        img.writeHeapCache();  // booted fine, so the loaded heap is worth caching
         vm.run();
     }
 }
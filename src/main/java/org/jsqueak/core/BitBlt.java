@@ -23,14 +23,19 @@ THE SOFTWARE.
 
 package org.jsqueak.core;
 
+import org.jsqueak.SqueakConfig;
+
 import java.awt.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * @author Dan Ingalls
  * <p>
  * Will eventually implement the full BitBlt plus Warp Drive(tm)
  */
-public class BitBlt {
+public class BitBlt implements Cloneable {
 
     static class Const {
         static long AllOnes = 0xFFFFFFFF;
@@ -45,18 +50,22 @@ public class BitBlt {
         static int BBDestYIndex = 5;
         static int BBHalftoneFormIndex = 2;
         static int BBHeightIndex = 7;
+        static int BBLastIndex = 15;
         static int BBRuleIndex = 3;
         static int BBSourceFormIndex = 1;
         static int BBSourceXIndex = 8;
         static int BBSourceYIndex = 9;
         static int BBWarpBase = 15;
         static int BBWidthIndex = 6;
+        static int BBXTableIndex = 16;
         static int BinaryPoint = 14;
         static int BlueIndex = 2;
         static int ColorMapFixedPart = 2;
         static int ColorMapIndexedPart = 4;
         static int ColorMapNewStyle = 8;
         static int ColorMapPresent = 1;
+        static int CrossedX = 258;
+        static int EndOfRun = 257;
         static int FixedPt1 = 16384;
         static int FormBitsIndex = 0;
         static int FormDepthIndex = 3;
@@ -126,6 +135,20 @@ public class BitBlt {
     private int[] cmMaskTable;
     private int[] cmLookupTable;
     private int cmBitsPerColor;
+    private boolean pixMapLoop;  // source and destination differ in depth, bit order or need a color map
+    // The destination pixel for each source pixel of up to 8 bits, built by copyLoopPixMap for the current blit
+    private int[] sourcePixelMap = new int[256];
+    private boolean sourcePixelsMapped;
+
+    // Source words of the unmasked middle of a row, merged by mergeRow()
+    private int[] rowBuffer = new int[64];
+
+    // Blits and words written per combination rule, to see which rules deserve a loop of their own
+    private final long[] ruleCalls = new long[34];
+    private final long[] ruleWords = new long[34];
+
+    private final static int ParallelMinPixels = 1 << 18;  // smaller blits are done on the calling thread
+    private final static int BandPixels = 1 << 15;  // pixels per band of a parallel blit
 
     final static int FN_XOR = 2;
     final static int FN_STORE_CONST = 12;
@@ -157,7 +180,7 @@ public class BitBlt {
                        SqueakObject displayForm) {
         SqueakVM.INSTANCE.setSuccess(true);
         isWarping = doWarp;
-        Object[] bbPointers = bbObject.pointers;
+        Object[] bbPointers = bbObject.getPointers();
         combinationRule = checkIntValue(bbPointers[3]);
         //SqueakLogger.log_D("loadBitBlt combinationRule: " + combinationRule);
 
@@ -180,6 +203,8 @@ public class BitBlt {
         if (!dest.loadFrom(destForm)) {
             return false;
         }
+        // the blt writes straight into the destination bits
+        ((SqueakObject) ((SqueakObject) destForm).getPointer(Squeak.Form_bits)).dirty = true;
         if (!loadBBDestRect(bbPointers)) {
             return false;
         }
@@ -276,12 +301,11 @@ public class BitBlt {
         if (intOrFloatObj == SqueakVM.nilObj) {
             return valueIfNil;
         }
-        SqueakObject floatObj = (SqueakObject) intOrFloatObj;
-        if (floatObj.sqClass != SqueakVM.specialObjects[Squeak.splOb_ClassFloat]) {
+        if (!(intOrFloatObj instanceof SqueakFloat)) {
             SqueakVM.INSTANCE.setSuccess(false);
             return 0;
         }
-        floatValue = floatObj.getFloatBits();
+        floatValue = ((SqueakFloat) intOrFloatObj).getFloatBits();
         if (!((-2.147483648e9 <= floatValue) && (floatValue <= 2.147483647e9))) {
             SqueakVM.INSTANCE.setSuccess(false);
             return 0;
@@ -303,7 +327,7 @@ public class BitBlt {
         if (InterpreterHelper.isPointers(aForm) && InterpreterHelper.SIZEOF(aForm) >= 4) {
             // Old-style 32xN monochrome halftone Forms
             bitsObject = InterpreterHelper.fetchPointerOfObject(0, aForm);
-            halftoneBits = (int[]) bitsObject.bits;
+            halftoneBits = bitsObject.getWords();
             halftoneHeight = InterpreterHelper.fetchIntegerOfObject(2, aForm);
             if (halftoneBits == null) {
                 return false;
@@ -316,7 +340,7 @@ public class BitBlt {
             if (!(!InterpreterHelper.isPointers(aForm) && InterpreterHelper.isWords(aForm))) {
                 return false;
             }
-            halftoneBits = (int[]) ((SqueakObject) aForm).bits;
+            halftoneBits = ((SqueakObject) aForm).getWords();
             if (halftoneBits == null || halftoneBits.length < 1) {
                 return false;
             }
@@ -339,7 +363,7 @@ public class BitBlt {
             //New spec accepts, basically, a word array
             if (((SqueakObject) aForm).format != 6)
                 return false;
-            halftoneBits = (int[]) ((SqueakObject) aForm).bits;
+            halftoneBits = ((SqueakObject) aForm).getWords();
             if (halftoneBits == null || halftoneBits.length < 1)
                 return false;
             halftoneHeight = halftoneBits.length;
@@ -392,7 +416,7 @@ public class BitBlt {
             // This is an old-style color map (indexed only, with implicit RGBA conversion)
 
             cmSize = InterpreterHelper.SIZEOF(cmOop);
-            cmLookupTable = (int[]) ((SqueakObject) cmOop).bits;
+            cmLookupTable = ((SqueakObject) cmOop).getWords();
             oldStyle = true;
         } else {
             // A new-style color map (fully qualified)
@@ -410,7 +434,7 @@ public class BitBlt {
                     return false;
                 }
                 cmSize = InterpreterHelper.SIZEOF(oop);
-                cmLookupTable = (int[]) ((SqueakObject) oop).bits;
+                cmLookupTable = ((SqueakObject) oop).getWords();
             }
             cmFlags = cmFlags | Const.ColorMapNewStyle;
         }
@@ -510,18 +534,24 @@ public class BitBlt {
         }
         destMaskAndPointerInit();
         bitCount = 0;
+        ruleCalls[combinationRule]++;
+        ruleWords[combinationRule] += (long) nWords * bbH;
         /* Choose and perform the actual copy loop. */
-        if (noSource) {
-            copyLoopNoSource();
-        } else {
+        pixMapLoop = false;
+        if (!noSource) {
             checkSourceOverlap();
             if ((source.depth != dest.depth) || ((cmFlags != 0) || (source.msb != dest.msb))) {
-                copyLoopPixMap();
+                pixMapLoop = true;
             } else {
                 sourceSkewAndPointerInit();
-                copyLoop();
             }
         }
+        if (SqueakConfig.PARALLEL_BITBLT && (long) bbW * bbH >= ParallelMinPixels
+                && ForkJoinPool.getCommonPoolParallelism() > 1 && rowsAreIndependent()) {
+            bitCount = ForkJoinPool.commonPool().invoke(new BandTask(0, bbH));
+        } else {
+            performCopyLoop();
+        }
         if (!destIsDisplay) {
             return null;
         }
@@ -545,6 +575,230 @@ public class BitBlt {
         return new Rectangle(affectedL, affectedT, affectedR - affectedL, affectedB - affectedT);
     }
 
+    /**
+     * The inner loop of text display, CharacterScanner>>scanCharactersFrom:to:in:rightX:stopConditions:displaying:.
+     * Marches through the string from start to stop, advancing destX by the width of each character
+     * in the xTable and displaying it if asked to, until a character has a stop condition, the next
+     * one would cross rightX, or the run ends. destX, lastIndex, sourceX and width of the scanner are
+     * left as the Smalltalk code leaves them.
+     *
+     * @param affectedArea grown to cover the characters displayed on the screen
+     * @return the stop condition to answer, or null if the primitive fails; then nothing is drawn
+     * or stored into the scanner, so the Smalltalk code can start again from start
+     */
+    Object scanCharacters(SqueakObject scanner, int start, int stop, byte[] string, int rightX, Object[] stops,
+                          boolean display, SqueakObject displayForm, Rectangle affectedArea) {
+        if (stops.length < Const.CrossedX || start < 1 || stop > string.length) {
+            return null;
+        }
+        Object[] scannerPointers = scanner.getPointers();
+        if (scannerPointers == null || scannerPointers.length <= Const.BBXTableIndex) {
+            return null;
+        }
+        Object xTableObject = scannerPointers[Const.BBXTableIndex];
+        Object[] xTable = InterpreterHelper.isPointers(xTableObject) ? ((SqueakObject) xTableObject).getPointers() : null;
+        if (xTable == null || !InterpreterHelper.isSTInteger(scannerPointers[Const.BBDestXIndex])) {
+            return null;
+        }
+        // First find where the run stops and check every glyph on the way, so that a failure
+        // leaves nothing drawn for the Smalltalk code to draw a second time
+        int firstDestX = (Integer) scannerPointers[Const.BBDestXIndex];
+        int scanDestX = firstDestX;
+        int scanSourceX = 0;
+        int scanWidth = 0;
+        boolean scanned = false;  // whether sourceX and width were set, as the Smalltalk code only sets them then
+        int lastIndex = start;
+        int stopIndex = Const.EndOfRun;
+        while (lastIndex <= stop) {
+            int ascii = string[lastIndex - 1] & 0xFF;
+            if (stops[ascii] != SqueakVM.nilObj) {
+                stopIndex = ascii + 1;
+                break;
+            }
+            if (ascii + 1 >= xTable.length
+                    || !InterpreterHelper.isSTInteger(xTable[ascii])
+                    || !InterpreterHelper.isSTInteger(xTable[ascii + 1])) {
+                return null;
+            }
+            scanSourceX = (Integer) xTable[ascii];
+            scanWidth = (Integer) xTable[ascii + 1] - scanSourceX;
+            scanned = true;
+            int nextDestX = scanDestX + scanWidth;
+            if (nextDestX > rightX) {
+                stopIndex = Const.CrossedX;
+                break;
+            }
+            scanDestX = nextDestX;
+            lastIndex++;
+        }
+        Integer scanDestXObject = InterpreterHelper.smallFromInt(scanDestX);
+        if (scanDestXObject == null) {
+            return null;
+        }
+
+        // Then display the glyphs passed over
+        if (display) {
+            if (!loadBitBlt(scanner, 0, false, displayForm)) {
+                return null;
+            }
+            destX = firstDestX;
+            for (int i = start; i < lastIndex; i++) {
+                int ascii = string[i - 1] & 0xFF;
+                sourceX = (Integer) xTable[ascii];
+                width = (Integer) xTable[ascii + 1] - sourceX;
+                Rectangle affected = copyBits();
+                if (affected != null) {
+                    affectedArea.add(affected);
+                }
+                destX += width;
+            }
+        }
+
+        if (stopIndex == Const.EndOfRun) {
+            lastIndex = stop;
+        }
+        scanner.setPointer(Const.BBDestXIndex, scanDestXObject);
+        scanner.setPointer(Const.BBLastIndex, lastIndex);
+        if (scanned) {
+            scanner.setPointer(Const.BBSourceXIndex, scanSourceX);
+            scanner.setPointer(Const.BBWidthIndex, scanWidth);
+        }
+        return stops[stopIndex - 1];
+    }
+
+    /**
+     * The Bresenham loop of line drawing, BitBlt>>drawLoopX:Y:. Steps destX and destY along the line
+     * by xDelta and yDelta and copies at every point but the first and the last, which the callers
+     * draw as they need, then stores destX and destY back into the BitBlt. loadBitBlt must have been
+     * done first.
+     *
+     * @param affectedArea grown to cover what was drawn on the screen
+     * @return false if the primitive fails, before anything was drawn
+     */
+    boolean drawLoop(SqueakObject bbObject, int xDelta, int yDelta, Rectangle affectedArea) {
+        if (InterpreterHelper.smallFromInt(destX + xDelta) == null || InterpreterHelper.smallFromInt(destY + yDelta) == null) {
+            return false;
+        }
+        int dx1 = Integer.signum(xDelta);
+        int dy1 = Integer.signum(yDelta);
+        int px = Math.abs(yDelta);
+        int py = Math.abs(xDelta);
+        if (py > px) {
+            // more horizontal
+            int p = py / 2;
+            for (int i = 1; i <= py; i++) {
+                destX += dx1;
+                if ((p -= px) < 0) {
+                    destY += dy1;
+                    p += py;
+                }
+                if (i < py) {
+                    drawPoint(affectedArea);
+                }
+            }
+        } else {
+            // more vertical
+            int p = px / 2;
+            for (int i = 1; i <= px; i++) {
+                destY += dy1;
+                if ((p -= py) < 0) {
+                    destX += dx1;
+                    p += px;
+                }
+                if (i < px) {
+                    drawPoint(affectedArea);
+                }
+            }
+        }
+        bbObject.setPointer(Const.BBDestXIndex, destX);
+        bbObject.setPointer(Const.BBDestYIndex, destY);
+        return true;
+    }
+
+    private void drawPoint(Rectangle affectedArea) {
+        Rectangle affected = copyBits();
+        if (affected != null) {
+            affectedArea.add(affected);
+        }
+    }
+
+    private void performCopyLoop() {
+        if (noSource) {
+            copyLoopNoSource();
+        } else if (pixMapLoop) {
+            copyLoopPixMap();
+        } else {
+            copyLoop();
+        }
+    }
+
+    /**
+     * Whether the rows of this blit can be done in any order, or at the same time.
+     */
+    private boolean rowsAreIndependent() {
+        if (combinationRule == 23 || combinationRule == 33) {
+            return false;  // the tally goes into the color map
+        }
+        // a row of the source must not be a row of the destination written by another band
+        return noSource || source.bits != dest.bits || dy == sy;
+    }
+
+    /**
+     * A copy of this BitBlt that does rows [firstRow, firstRow + rows) of the current blit,
+     * in the order of the loop.
+     */
+    private BitBlt band(int firstRow, int rows) {
+        BitBlt band;
+        try {
+            band = (BitBlt) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        // the merge functions work on the fields of their BitBlt
+        band._BBOpTable = new IMergeFn[_BBOpTable.length];
+        band.initBBOpTable();
+        band.rowBuffer = new int[rowBuffer.length];
+        band.sourcePixelMap = new int[sourcePixelMap.length];
+        band.bitCount = 0;
+        band.bbH = rows;
+        band.dy = dy + firstRow * vDir;
+        band.sy = sy + firstRow * vDir;
+        band.destIndex = destIndex + firstRow * vDir * dest.pitch;
+        if (!noSource) {
+            band.sourceIndex = sourceIndex + firstRow * vDir * source.pitch;
+        }
+        return band;
+    }
+
+    /**
+     * Do a band of rows of the current blit in parallel; answers the bitCount of the band.
+     */
+    @SuppressWarnings("serial")
+    private class BandTask extends RecursiveTask<Integer> {
+        private final int firstRow;
+        private final int rows;
+
+        BandTask(int firstRow, int rows) {
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (rows == 1 || (long) rows * bbW <= BandPixels) {
+                BitBlt band = band(firstRow, rows);
+                band.performCopyLoop();
+                return band.bitCount;
+            }
+            int half = rows >>> 1;
+            BandTask upper = new BandTask(firstRow, half);
+            BandTask lower = new BandTask(firstRow + half, rows - half);
+            lower.fork();
+            int count = upper.compute();
+            return count + lower.join();
+        }
+    }
+
     void destMaskAndPointerInit() {
         int pixPerM1;
         int endBits;
@@ -671,20 +925,18 @@ public class BitBlt {
             destIndex++;
             destMask = AllOnes;
             //The central horizontal loop requires no store masking */
-            if (combinationRule == 3) {
-                destWord = halftoneWord;
-                // Store rule requires no dest merging
-                for (word = 2; word <= (nWords - 1); word += 1) {
-                    dstLongAtput(destIndex, destWord);
-                    destIndex++;
-                }
-            } else {
-                for (word = 2; word <= (nWords - 1); word += 1) {
-                    destWord = dstLongAt(destIndex);
-                    mergeWord = mergeFnwith(halftoneWord, destWord);
-                    dstLongAtput(destIndex, mergeWord);
-                    destIndex++;
+            if (combinationRule == 3 || combinationRule == 0) {
+                destWord = combinationRule == 3 ? halftoneWord : 0;
+                // Store and clear rules require no dest merging
+                if (nWords > 2) {
+                    Arrays.fill(dest.bits, destIndex, destIndex + nWords - 2, destWord);
+                    destIndex += nWords - 2;
                 }
+            } else if (nWords > 2) {
+                int[] row = rowBuffer(nWords - 2);
+                Arrays.fill(row, 0, nWords - 2, halftoneWord);
+                mergeRow(row, nWords - 2, destIndex, 1);
+                destIndex += nWords - 2;
             }
             if (nWords > 1) {
                 //last word in row is masked
@@ -768,20 +1020,38 @@ public class BitBlt {
             if (combinationRule == 3) {
                 //Store mode avoids dest merge function
                 if ((skew == 0) && (halftoneWord == AllOnes)) {
-                    //Non-skewed with no halftone
+                    //Non-skewed with no halftone, so the middle of the row is a plain copy;
+                    //the loops are left for a source running out of its bits
+                    int middle = nWords - 2;
                     if (hDir == -1) {
-                        for (word = 2; word <= (nWords - 1); word += 1) {
-                            thisWord = srcLongAt(sourceIndex);
-                            sourceIndex += hInc;
-                            dstLongAtput(destIndex, thisWord);
-                            destIndex += hInc;
+                        int from = sourceIndex - middle + 1;
+                        if (middle > 0 && from >= 0 && sourceIndex < sourceLimit) {
+                            System.arraycopy(source.bits, from, dest.bits, destIndex - middle + 1, middle);
+                            sourceIndex -= middle;
+                            destIndex -= middle;
+                        } else {
+                            for (word = 2; word <= (nWords - 1); word += 1) {
+                                thisWord = srcLongAt(sourceIndex);
+                                sourceIndex += hInc;
+                                dstLongAtput(destIndex, thisWord);
+                                destIndex += hInc;
+                            }
                         }
                     } else {
-                        for (word = 2; word <= (nWords - 1); word += 1) {
-                            dstLongAtput(destIndex, prevWord);
-                            destIndex += hInc;
-                            prevWord = srcLongAt(sourceIndex);
-                            sourceIndex += hInc;
+                        // prevWord, the last word read, goes first
+                        int from = sourceIndex - 1;
+                        if (middle > 0 && from >= 0 && from + middle <= sourceLimit) {
+                            System.arraycopy(source.bits, from, dest.bits, destIndex, middle);
+                            destIndex += middle;
+                            sourceIndex += middle;
+                            prevWord = srcLongAt(sourceIndex - 1);
+                        } else {
+                            for (word = 2; word <= (nWords - 1); word += 1) {
+                                dstLongAtput(destIndex, prevWord);
+                                destIndex += hInc;
+                                prevWord = srcLongAt(sourceIndex);
+                                sourceIndex += hInc;
+                            }
                         }
                     }
                 } else {
@@ -796,18 +1066,20 @@ public class BitBlt {
                         destIndex += hInc;
                     }
                 }
-            } else {
-                //Dest merging here...
-                for (word = 2; word <= (nWords - 1); word += 1) {
+            } else if (nWords > 2) {
+                //Dest merging here, after collecting the source words of the row
+                //(the source word for a destination word is never one written before in this row)
+                int[] row = rowBuffer(nWords - 2);
+                for (word = 0; word < nWords - 2; word += 1) {
                     thisWord = srcLongAt(sourceIndex); //pick up next word
                     sourceIndex += hInc;
                     /* 32-bit rotate */
                     skewWord = (((unskew < 0) ? ((prevWord & notSkewMask) >>> -unskew) : ((prevWord & notSkewMask) << unskew))) | (((skew < 0) ? ((thisWord & skewMask) >>> -skew) : ((thisWord & skewMask) << skew)));
                     prevWord = thisWord;
-                    mergeWord = mergeFnwith(skewWord & halftoneWord, dstLongAt(destIndex));
-                    dstLongAtput(destIndex, mergeWord);
-                    destIndex += hInc;
+                    row[word] = skewWord & halftoneWord;
                 }
+                mergeRow(row, nWords - 2, destIndex, hInc);
+                destIndex += (nWords - 2) * hInc;
             }
             if (nWords > 1) {
                 // last word with masking and all
@@ -881,6 +1153,16 @@ public class BitBlt {
         // -------------------------------
 
         mapperFlags = cmFlags & (~Const.ColorMapNewStyle);
+        // Translate small source pixels through a table, if the map has more to do than a lookup
+        // and there are more pixels than entries. It is built for every blit, as Squeak may have
+        // changed the color map since the last one.
+        sourcePixelsMapped = (mapperFlags & Const.ColorMapFixedPart) != 0
+                && source.depth <= 8 && (1 << source.depth) <= bbW * bbH;
+        if (sourcePixelsMapped) {
+            for (int pixel = 0; pixel <= sourcePixMask; pixel++) {
+                sourcePixelMap[pixel] = mapPixelflags(pixel, mapperFlags) & destPixMask;
+            }
+        }
         sourceIndex = (sy * source.pitch) + (sx / source.pixPerWord);
         scrStartBits = source.pixPerWord - (sx & (source.pixPerWord - 1));
         nSourceIncs = (bbW < scrStartBits) ? 0 : ((bbW - scrStartBits) / source.pixPerWord) + 1;
@@ -905,6 +1187,8 @@ public class BitBlt {
             dstShiftInc = 0 - dstShiftInc;
             dstShiftLeft = 32 - dest.depth;
         }
+        // collecting the source words of a row before merging is only safe if it isn't also the destination
+        boolean rowBuffered = source.bits != dest.bits;
         for (i = 1; i <= bbH; i += 1) {
             halftoneWord = (noHalftone) ? AllOnes : halftoneAt((dy + i) - 1);
             srcBitShift = srcShift;
@@ -914,8 +1198,29 @@ public class BitBlt {
             words = nWords;
             /* Here is the horizontal loop... */
             do {
+                if (destMask == AllOnes && words > 2 && rowBuffered) {
+                    // the unmasked middle of the row, all but the last word
+                    int n = words - 1;
+                    int[] row = rowBuffer(n);
+                    if (sourcePixelsMapped) {
+                        dstBitShift = dstShiftLeft;  // whole words, nothing else to align to
+                        pickMappedSourceRow(row, n, sourcePixMask, srcShiftInc, dstShiftInc, halftoneWord);
+                    } else {
+                        for (int word = 0; word < n; word++) {
+                            row[word] = pickSourcePixelsflagssrcMaskdestMasksrcShiftIncdstShiftInc(nPix, mapperFlags, sourcePixMask, destPixMask, srcShiftInc, dstShiftInc) & halftoneWord;
+                            dstBitShift = dstShiftLeft;
+                        }
+                    }
+                    mergeRow(row, n, destIndex, 1);
+                    destIndex += n;
+                    words = 1;
+                    destMask = mask2;
+                    nPix = endBits;
+                }
                 /* align next word to leftmost pixel */
-                skewWord = pickSourcePixelsflagssrcMaskdestMasksrcShiftIncdstShiftInc(nPix, mapperFlags, sourcePixMask, destPixMask, srcShiftInc, dstShiftInc);
+                skewWord = sourcePixelsMapped
+                        ? pickMappedSourcePixels(nPix, sourcePixMask, srcShiftInc, dstShiftInc)
+                        : pickSourcePixelsflagssrcMaskdestMasksrcShiftIncdstShiftInc(nPix, mapperFlags, sourcePixMask, destPixMask, srcShiftInc, dstShiftInc);
                 dstBitShift = dstShiftLeft;
                 if (destMask == AllOnes) {
                     mergeWord = mergeFnwith(skewWord & halftoneWord, dstLongAt(destIndex));
@@ -999,6 +1304,59 @@ public class BitBlt {
         return destWord;
     }
 
+    /**
+     * pickSourcePixels for source pixels translated by sourcePixelMap; kept apart, so that
+     * both stay small enough to be inlined.
+     */
+    private int pickMappedSourcePixels(int nPixels, int srcMask, int srcShiftInc, int dstShiftInc) {
+        int[] pixelMap = sourcePixelMap;
+        int sourceWord = srcLongAt(sourceIndex);
+        int destWord = 0;
+        int srcShift = srcBitShift;
+        int dstShift = dstBitShift;
+        int srcWrap = source.msb ? 32 : -32;
+        int nPix = nPixels;
+        do {
+            destWord = destWord | (pixelMap[(sourceWord >>> srcShift) & srcMask] << dstShift);
+            dstShift += dstShiftInc;
+            if (((srcShift += srcShiftInc) & 0xFFFFFFE0) != 0) {
+                srcShift += srcWrap;
+                sourceWord = srcLongAt(sourceIndex += 1);
+            }
+        } while (--nPix != 0);
+        srcBitShift = srcShift;
+        return destWord;
+    }
+
+    /**
+     * pickMappedSourcePixels for n whole destination words at once.
+     */
+    private void pickMappedSourceRow(int[] row, int n, int srcMask, int srcShiftInc, int dstShiftInc, int halftoneWord) {
+        int[] pixelMap = sourcePixelMap;
+        int[] sourceBits = source.bits;
+        int pixPerWord = dest.pixPerWord;
+        int index = sourceIndex;
+        int sourceWord = srcLongAt(index);
+        int srcShift = srcBitShift;
+        int srcWrap = source.msb ? 32 : -32;
+        for (int word = 0; word < n; word++) {
+            int destWord = 0;
+            int dstShift = dstBitShift;
+            for (int pix = 0; pix < pixPerWord; pix++) {
+                destWord = destWord | (pixelMap[(sourceWord >>> srcShift) & srcMask] << dstShift);
+                dstShift += dstShiftInc;
+                if (((srcShift += srcShiftInc) & 0xFFFFFFE0) != 0) {
+                    srcShift += srcWrap;
+                    index++;
+                    sourceWord = index < sourceBits.length ? sourceBits[index] : 0;
+                }
+            }
+            row[word] = destWord & halftoneWord;
+        }
+        sourceIndex = index;
+        srcBitShift = srcShift;
+    }
+
     /*  Color map the given source pixel. */
 
     int mapPixelflags(int sourcePixel, int mapperFlags) {
@@ -1027,6 +1385,158 @@ public class BitBlt {
     }
 
 
+    private int[] rowBuffer(int size) {
+        if (rowBuffer.length < size) {
+            rowBuffer = new int[Math.max(size, rowBuffer.length * 2)];
+        }
+        return rowBuffer;
+    }
+
+    /**
+     * Merge n words of row into the destination, from destIndex on in direction hInc, with no
+     * masking. The frequent rules have a loop of their own with the merge function inlined,
+     * the others go through mergeFnwith.
+     * <p>
+     * The loops run forward over plain indexes and the logical and 32 bit rgb rules have no
+     * branches, so that the JIT can vectorize them.
+     */
+    void mergeRow(int[] row, int n, int destIndex, int hInc) {
+        if (hInc < 0) {
+            // the words don't depend on each other, so merge them forward in reverse order
+            for (int i = 0, j = n - 1; i < j; i++, j--) {
+                int t = row[i];
+                row[i] = row[j];
+                row[j] = t;
+            }
+            destIndex = destIndex - n + 1;
+        }
+        int[] bits = dest.bits;
+        int d = destIndex;
+        switch (combinationRule) {
+            case 0:
+                Arrays.fill(bits, d, d + n, 0);
+                break;
+            case 3:
+                System.arraycopy(row, 0, bits, d, n);
+                break;
+            case 4:
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = (~row[j]) & bits[d + j];
+                }
+                break;
+            case 6:
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = row[j] ^ bits[d + j];
+                }
+                break;
+            case 7:
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = row[j] | bits[d + j];
+                }
+                break;
+            case 20:
+                if (dest.depth != 32) {
+                    mergeRowWithMergeFn(row, n, d);
+                    break;
+                }
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = rgbAdd32(row[j], bits[d + j]);
+                }
+                break;
+            case 21:
+                if (dest.depth != 32) {
+                    mergeRowWithMergeFn(row, n, d);
+                    break;
+                }
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = rgbSub32(row[j], bits[d + j]);
+                }
+                break;
+            case 24:
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = alphaBlendwith(row[j], bits[d + j]);
+                }
+                break;
+            case 25:
+                int depth = dest.depth;
+                int pixPerWord = dest.pixPerWord;
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = pixPaintwith(row[j], bits[d + j], depth, pixPerWord);
+                }
+                break;
+            case 27:
+                if (dest.depth != 32) {
+                    mergeRowWithMergeFn(row, n, d);
+                    break;
+                }
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = rgbMax32(row[j], bits[d + j]);
+                }
+                break;
+            case 28:
+                if (dest.depth != 32) {
+                    mergeRowWithMergeFn(row, n, d);
+                    break;
+                }
+                for (int j = 0; j < n; j++) {
+                    bits[d + j] = rgbMin32(row[j], bits[d + j]);
+                }
+                break;
+            default:
+                mergeRowWithMergeFn(row, n, d);
+        }
+    }
+
+    private void mergeRowWithMergeFn(int[] row, int n, int destIndex) {
+        int[] bits = dest.bits;
+        for (int j = 0; j < n; j++) {
+            bits[destIndex + j] = mergeFnwith(row[j], bits[destIndex + j]);
+        }
+    }
+
+    /* rgbAdd, rgbSub, rgbMax and rgbMin of a 32 bit pixel, with the partitions unrolled;
+       like the partitioned versions rgbAdd and rgbSub leave out alpha, and compare signed */
+
+    private static int rgbAdd32(int sourceWord, int destinationWord) {
+        return Math.min((sourceWord & 0xFF) + (destinationWord & 0xFF), 0xFF)
+                | Math.min((sourceWord & 0xFF00) + (destinationWord & 0xFF00), 0xFF00)
+                | Math.min((sourceWord & 0xFF0000) + (destinationWord & 0xFF0000), 0xFF0000);
+    }
+
+    private static int rgbSub32(int sourceWord, int destinationWord) {
+        return Math.abs((sourceWord & 0xFF) - (destinationWord & 0xFF))
+                | Math.abs((sourceWord & 0xFF00) - (destinationWord & 0xFF00))
+                | Math.abs((sourceWord & 0xFF0000) - (destinationWord & 0xFF0000));
+    }
+
+    private static int rgbMax32(int sourceWord, int destinationWord) {
+        return Math.max(destinationWord & 0xFF, sourceWord & 0xFF)
+                | Math.max(destinationWord & 0xFF00, sourceWord & 0xFF00)
+                | Math.max(destinationWord & 0xFF0000, sourceWord & 0xFF0000)
+                | Math.max(destinationWord & 0xFF000000, sourceWord & 0xFF000000);
+    }
+
+    private static int rgbMin32(int sourceWord, int destinationWord) {
+        return Math.min(destinationWord & 0xFF, sourceWord & 0xFF)
+                | Math.min(destinationWord & 0xFF00, sourceWord & 0xFF00)
+                | Math.min(destinationWord & 0xFF0000, sourceWord & 0xFF0000)
+                | Math.min(destinationWord & 0xFF000000, sourceWord & 0xFF000000);
+    }
+
+    /**
+     * @return the number of blits per combination rule since the start
+     */
+    long[] getRuleCalls() {
+        return ruleCalls.clone();
+    }
+
+    /**
+     * @return the number of destination words written per combination rule since the start
+     */
+    long[] getRuleWords() {
+        return ruleWords.clone();
+    }
+
     int mergeFnwith(int sourceWord, int destinationWord) {
         IMergeFn mergeFnFunction = _BBOpTable[combinationRule + 1];
         if (mergeFnFunction != null) {
@@ -1120,7 +1630,7 @@ public class BitBlt {
             InterpreterHelper.primitiveFail();
             return null;
         }
-        return (int[]) ((SqueakObject) mapOop).bits;
+        return ((SqueakObject) mapOop).getWords();
     }
 
     /*	WARNING: For WarpBlt w/ smoothing the source depth is wrong here! */
@@ -1156,18 +1666,37 @@ public class BitBlt {
         setupColorMasksFromto(bits, targetBits);
     }
 
+    /*	The shift and mask tables for every srcBits to targetBits conversion, indexed [srcBits][targetBits].
+        They are shared by every blit, so they must never be written to. */
+    private static final int[][][][] ColorMasks = new int[9][9][][];
+
+    static {
+        for (int srcBits = 1; srcBits <= 8; srcBits++) {
+            for (int targetBits = 1; targetBits <= 8; targetBits++) {
+                ColorMasks[srcBits][targetBits] = colorMasksFromto(srcBits, targetBits);
+            }
+        }
+    }
+
     /*	Setup color masks for converting an incoming RGB pixel value from srcBits to targetBits. */
 
     private void setupColorMasksFromto(int srcBits, int targetBits) {
+        if (targetBits == srcBits) {
+            return;
+        }
+        int[][] shiftsAndMasks = ColorMasks[srcBits][targetBits];
+        cmShiftTable = shiftsAndMasks[0];
+        cmMaskTable = shiftsAndMasks[1];
+        cmFlags = cmFlags | (Const.ColorMapPresent | Const.ColorMapFixedPart);
+    }
+
+    private static int[][] colorMasksFromto(int srcBits, int targetBits) {
         int[] shifts = new int[]{0, 0, 0, 0};
         int[] masks = new int[]{0, 0, 0, 0};
         int deltaBits;
         int mask;
 
         deltaBits = targetBits - srcBits;
-        if (deltaBits == 0) {
-            return;
-        }
         if (deltaBits <= 0) {
 
             /* Mask for extracting a color part of the source */
@@ -1190,9 +1719,7 @@ public class BitBlt {
         shifts[Const.GreenIndex] = (deltaBits * 2);
         shifts[Const.BlueIndex] = deltaBits;
         shifts[Const.AlphaIndex] = 0;
-        cmShiftTable = shifts;
-        cmMaskTable = masks;
-        cmFlags = cmFlags | (Const.ColorMapPresent | Const.ColorMapFixedPart);
+        return new int[][]{shifts, masks};
     }
 
     /*	Return true if shiftTable/maskTable define an identity mapping. */
@@ -1307,6 +1834,43 @@ public class BitBlt {
         return result;
     }
 
+    private static int alphaBlendwith(int sourceWord, int destinationWord) {
+        int unAlpha;
+        int blendRB;
+        int blendAG;
+        int result;
+        int alpha;
+
+        /* High 8 bits of source pixel */
+        alpha = sourceWord >>> 24;
+        if (alpha == 0) {
+            return destinationWord;
+        }
+        if (alpha == 255) {
+            return sourceWord;
+        }
+        unAlpha = 255 - alpha;
+
+        /* blend red and blue */
+        blendRB = (((sourceWord & 0x00FF00FF) * alpha) + ((destinationWord & 0x00FF00FF) * unAlpha)) + 0x00FF00FF;
+
+        /* blend alpha and green */
+        blendAG = (((((sourceWord >>> 8) | 0x00FF0000) & 0x00FF00FF) * alpha) + (((destinationWord >>> 8) & 0x00FF00FF) * unAlpha)) + 0x00FF00FF;
+
+        /* divide by 255 */
+        blendRB = ((blendRB + (((blendRB - 65537) >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
+        blendAG = ((blendAG + (((blendAG - 65537) >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
+        result = blendRB | (blendAG << 8);
+        return result;
+    }
+
+    private int pixPaintwith(int sourceWord, int destinationWord, int depth, int pixPerWord) {
+        if (sourceWord == 0) {
+            return destinationWord;
+        }
+        return sourceWord | (partitionedANDtonBitsnPartitions(~sourceWord, destinationWord, depth, pixPerWord));
+    }
+
     private int alphaBlendConstwithpaintMode(int sourceWord, int destinationWord, boolean paintMode) {
         int rgbMask;
         int pixMask;
@@ -1628,42 +2192,11 @@ public class BitBlt {
         };
 
         // SqueakFunction:: alphaBlendwith
-        _BBOpTable[24 + 1] = (sourceWord, destinationWord) -> {
-            int unAlpha;
-            int blendRB;
-            int blendAG;
-            int result;
-            int alpha;
-
-            /* High 8 bits of source pixel */
-            alpha = sourceWord >>> 24;
-            if (alpha == 0) {
-                return destinationWord;
-            }
-            if (alpha == 255) {
-                return sourceWord;
-            }
-            unAlpha = 255 - alpha;
-
-            /* blend red and blue */
-            blendRB = (((sourceWord & 0x00FF00FF) * alpha) + ((destinationWord & 0x00FF00FF) * unAlpha)) + 0x00FF00FF;
-
-            /* blend alpha and green */
-            blendAG = (((((sourceWord >>> 8) | 0x00FF0000) & 0x00FF00FF) * alpha) + (((destinationWord >>> 8) & 0x00FF00FF) * unAlpha)) + 0x00FF00FF;
-
-            /* divide by 255 */
-            blendRB = ((blendRB + (((blendRB - 65537) >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
-            blendAG = ((blendAG + (((blendAG - 65537) >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
-            result = blendRB | (blendAG << 8);
-            return result;
-        };
+        _BBOpTable[24 + 1] = BitBlt::alphaBlendwith;
 
         // SqueakFunction:: pixPaintwith
         _BBOpTable[25 + 1] = (sourceWord, destinationWord) -> {
-            if (sourceWord == 0) {
-                return destinationWord;
-            }
-            return sourceWord | (partitionedANDtonBitsnPartitions(~sourceWord, destinationWord, dest.depth, dest.pixPerWord));
+            return pixPaintwith(sourceWord, destinationWord, dest.depth, dest.pixPerWord);
         };
 
         // SqueakFunction:: pixMaskwith
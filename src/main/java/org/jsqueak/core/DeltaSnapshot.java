@@ -0,0 +1,353 @@
+package org.jsqueak.core;
+
+import org.jsqueak.uilts.SqueakLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Delta snapshots record only the objects created or modified since the base image or the previous delta
+ * was written. They are kept next to the base image as "name.delta1", "name.delta2", ... and are replayed
+ * in that order onto the base when it is loaded again.
+ * <p>
+ * Objects are identified by their snapshot id: their offset in the base image plus 4 (so that 0 can
+ * stand for no id), or an id beyond the end of the base given by the delta that first recorded them. Modifications are found by the dirty flag
+ * of SqueakObject, which is set by the setters, the at:put: and replace primitives, BitBlt and become.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ *   header:  magic, version, base checksum (long), base length (long), sequence number,
+ *            lastHash, next free snapshot id, ref of specialObjectsArray, object count
+ *   objects: snapshot id, format (byte), hash (short), class ref, pointer count (-1 if none), pointer refs,
+ *            bits tag (byte) followed by the bytes, words or double bits
+ * </pre>
+ * A ref is a SmallInteger as (value << 1) | 1, or a snapshot id, which is always a multiple of 4.
+ */
+class DeltaSnapshot {
+
+    private final static int MAGIC = 0x4A535144;  // "JSQD"
+    private final static int VERSION = 1;
+
+    private final static byte BITS_NONE = 0;
+    private final static byte BITS_BYTES = 1;
+    private final static byte BITS_WORDS = 2;
+    private final static byte BITS_DOUBLE = 3;
+
+    private final File imageFile;
+    private final long baseChecksum;
+    private final long baseLength;
+    private int sequence;
+    private int nextSnapshotId;
+
+    /**
+     * Start a delta chain on a base image file.
+     *
+     * @param nextSnapshotId the first id beyond the objects of the base
+     */
+    DeltaSnapshot(File imageFile, long baseChecksum, long baseLength, int nextSnapshotId) {
+        this.imageFile = imageFile;
+        this.baseChecksum = baseChecksum;
+        this.baseLength = baseLength;
+        this.nextSnapshotId = nextSnapshotId;
+    }
+
+    static File deltaFile(File imageFile, int sequence) {
+        return new File(imageFile.getPath() + ".delta" + sequence);
+    }
+
+    /**
+     * True if there are deltas to replay onto imageFile.
+     */
+    static boolean exist(File imageFile) {
+        return deltaFile(imageFile, 1).isFile();
+    }
+
+    /**
+     * Delete the deltas of imageFile from sequence number first on, e.g. all of them
+     * once a new base is written.
+     */
+    static void deleteFrom(File imageFile, int first) {
+        for (int i = first; deltaFile(imageFile, i).delete(); i++) {
+            // all deleted up to the first missing one
+        }
+    }
+
+    File imageFile() {
+        return imageFile;
+    }
+
+    int size() {
+        return sequence;
+    }
+
+    //Writing
+
+    /**
+     * Write all objects modified since the last snapshot as the next delta, and mark them clean.
+     */
+    void write(SqueakObject specialObjectsArray) throws IOException {
+        ArrayList<SqueakObject> objects = new ArrayList<>();
+        int length = SqueakVM.objectMemory.getObjectTableLength();
+        for (int i = 0; i < length; i++) {
+            WeakReference<Object> ref = SqueakVM.objectMemory.getObjectAt(i);
+            SqueakObject obj = ref == null ? null : (SqueakObject) ref.get();
+            if (obj != null && obj.dirty) {
+                obj.ensureInstalled();
+                if (obj.snapshotId == 0) {
+                    obj.snapshotId = nextSnapshotId;
+                    nextSnapshotId += 4;
+                }
+                objects.add(obj);
+            }
+        }
+        Object nilObj = specialObjectsArray.getPointer(Squeak.splOb_NilObject);
+
+        File file = deltaFile(imageFile, sequence + 1);
+        File tmp = new File(file.getPath() + ".tmp");
+        SqueakLogger.log_D("Start writing delta " + file.getName() + " with " + objects.size() + " objects at " + System.currentTimeMillis());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(baseChecksum);
+            out.writeLong(baseLength);
+            out.writeInt(sequence + 1);
+            out.writeInt(SqueakVM.objectMemory.getLastHash());
+            out.writeInt(nextSnapshotId);
+            out.writeInt(encodeRef(specialObjectsArray, nilObj));
+            out.writeInt(objects.size());
+            for (SqueakObject obj : objects) {
+                out.writeInt(obj.snapshotId);
+                out.writeByte(obj.format);
+                out.writeShort(obj.hash);
+                out.writeInt(encodeRef(obj.sqClass, nilObj));
+                if (obj.pointers == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(obj.pointers.length);
+                    for (Object ptr : obj.pointers) {
+                        out.writeInt(encodeRef(ptr, nilObj));
+                    }
+                }
+                Object bits = obj.bits;
+                if (obj instanceof SqueakFloat) {
+                    out.writeByte(BITS_DOUBLE);
+                    out.writeLong(Double.doubleToRawLongBits(((SqueakFloat) obj).value));
+                } else if (bits instanceof byte[]) {
+                    out.writeByte(BITS_BYTES);
+                    out.writeInt(((byte[]) bits).length);
+                    out.write((byte[]) bits);
+                } else if (bits instanceof int[]) {
+                    out.writeByte(BITS_WORDS);
+                    out.writeInt(((int[]) bits).length);
+                    for (int word : (int[]) bits) {
+                        out.writeInt(word);
+                    }
+                } else {
+                    out.writeByte(BITS_NONE);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (SqueakObject obj : objects) {
+            obj.dirty = false;
+        }
+        sequence++;
+        SqueakLogger.log_D("Done writing delta at " + System.currentTimeMillis());
+    }
+
+    private static int encodeRef(Object ptr, Object nilObj) throws IOException {
+        if (ptr instanceof Integer) {
+            return ((Integer) ptr << 1) | 1;
+        }
+        if (ptr == null) {
+            ptr = nilObj;  // unused slots, e.g. above the stack pointer of a context
+        }
+        int id = ((SqueakObject) ptr).snapshotId;
+        if (id == 0) {
+            // neither in the base nor dirty, so it was never registered in the object table
+            throw new IOException("Pointer to an object without snapshot id: " + ptr);
+        }
+        return id;
+    }
+
+    //Replaying
+
+    /**
+     * Replay all deltas found for the base onto the objects loaded from it, stopping at the first
+     * delta that is missing, stale or damaged.
+     *
+     * @return the specialObjectsArray after the last delta replayed
+     */
+    SqueakObject replayAll(SqueakObject specialObjectsArray) {
+        HashMap<Integer, SqueakObject> objects = null;
+        for (File file = deltaFile(imageFile, 1); file.isFile(); file = deltaFile(imageFile, sequence + 1)) {
+            if (objects == null) {
+                objects = objectsById();
+            }
+            try {
+                specialObjectsArray = replay(file, objects);
+            } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException
+                     | NegativeArraySizeException | ClassCastException e) {
+                SqueakLogger.log_E("Cannot replay delta " + file + ": " + e);
+                deleteFrom(imageFile, sequence + 1);  // so that the next delta continues from here
+                break;
+            }
+            sequence++;
+        }
+        return specialObjectsArray;
+    }
+
+    private static HashMap<Integer, SqueakObject> objectsById() {
+        int length = SqueakVM.objectMemory.getObjectTableLength();
+        HashMap<Integer, SqueakObject> objects = new HashMap<>(length * 2);
+        for (int i = 0; i < length; i++) {
+            WeakReference<Object> ref = SqueakVM.objectMemory.getObjectAt(i);
+            SqueakObject obj = ref == null ? null : (SqueakObject) ref.get();
+            if (obj != null && obj.snapshotId != 0) {
+                objects.put(obj.snapshotId, obj);
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Replay one delta. It is decoded completely before any object is touched,
+     * so a damaged delta leaves the object memory as it was.
+     */
+    private SqueakObject replay(File file, HashMap<Integer, SqueakObject> objects) throws IOException {
+        SqueakLogger.log_D("Start replaying delta " + file.getName() + " at " + System.currentTimeMillis());
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("unknown format");
+        }
+        if (in.getLong() != baseChecksum || in.getLong() != baseLength || in.getInt() != sequence + 1) {
+            throw new IOException("not a delta of this base");
+        }
+        int lastHash = in.getInt();
+        int nextId = in.getInt();
+        int specialObjectsRef = in.getInt();
+        int count = in.getInt();
+
+        // Pass 1: decode, and create the objects that are new in this delta
+        int[] ids = new int[count];
+        short[] formats = new short[count];
+        short[] hashes = new short[count];
+        int[] classRefs = new int[count];
+        int[][] pointerRefs = new int[count][];
+        Object[] bits = new Object[count];
+        HashMap<Integer, SqueakObject> created = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            ids[i] = in.getInt();
+            formats[i] = in.get();
+            hashes[i] = in.getShort();
+            classRefs[i] = in.getInt();
+            int nPointers = in.getInt();
+            if (nPointers >= 0) {
+                pointerRefs[i] = new int[nPointers];
+                for (int j = 0; j < nPointers; j++) {
+                    pointerRefs[i][j] = in.getInt();
+                }
+            }
+            switch (in.get()) {
+                case BITS_NONE:
+                    break;
+                case BITS_BYTES: {
+                    byte[] bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    bits[i] = bytes;
+                    break;
+                }
+                case BITS_WORDS: {
+                    int[] words = new int[in.getInt()];
+                    in.asIntBuffer().get(words);
+                    in.position(in.position() + (words.length * 4));
+                    bits[i] = words;
+                    break;
+                }
+                case BITS_DOUBLE:
+                    bits[i] = Double.longBitsToDouble(in.getLong());
+                    break;
+                default:
+                    throw new IOException("bad bits tag for object " + ids[i]);
+            }
+            boolean isFloat = bits[i] instanceof Double;
+            SqueakObject obj = objects.get(ids[i]);
+            if (obj == null) {
+                obj = created.get(ids[i]);
+            }
+            if (obj == null) {
+                obj = isFloat ? new SqueakFloat() : new SqueakObject();
+                obj.snapshotId = ids[i];
+                created.put(ids[i], obj);
+            } else if (isFloat != obj instanceof SqueakFloat) {
+                throw new IOException("object " + ids[i] + " cannot change to or from a Float");
+            }
+        }
+        Object[] classes = new Object[count];
+        Object[][] pointers = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            classes[i] = decodeRef(classRefs[i], objects, created);
+            if (pointerRefs[i] != null) {
+                pointers[i] = new Object[pointerRefs[i].length];
+                for (int j = 0; j < pointers[i].length; j++) {
+                    pointers[i][j] = decodeRef(pointerRefs[i][j], objects, created);
+                }
+            }
+        }
+        SqueakObject newSpecialObjectsArray = (SqueakObject) decodeRef(specialObjectsRef, objects, created);
+
+        // Pass 2: nothing can fail any more, so update the object memory
+        for (int i = 0; i < count; i++) {
+            SqueakObject obj = created.get(ids[i]);
+            if (obj != null) {
+                SqueakVM.objectMemory.registerObject(obj);  // in the order they were recorded
+            }
+        }
+        objects.putAll(created);
+        for (int i = 0; i < count; i++) {
+            SqueakObject obj = objects.get(ids[i]);
+            obj.ensureInstalled();  // so that a lazy install cannot overwrite the replayed state
+            obj.format = formats[i];
+            obj.hash = hashes[i];
+            obj.sqClass = classes[i];
+            obj.pointers = pointers[i];
+            if (obj instanceof SqueakFloat) {
+                ((SqueakFloat) obj).value = (Double) bits[i];
+            } else {
+                obj.bits = bits[i];
+            }
+        }
+        SqueakVM.objectMemory.setLastHash(lastHash);
+        nextSnapshotId = nextId;
+        SqueakLogger.log_D("Done replaying delta at " + System.currentTimeMillis());
+        return newSpecialObjectsArray;
+    }
+
+    private static Object decodeRef(int ref, HashMap<Integer, SqueakObject> objects,
+                                    HashMap<Integer, SqueakObject> created) throws IOException {
+        if ((ref & 1) == 1) {
+            return InterpreterHelper.smallFromInt(ref >> 1);
+        }
+        SqueakObject obj = objects.get(ref);
+        if (obj == null) {
+            obj = created.get(ref);
+        }
+        if (obj == null) {
+            throw new IOException("unknown snapshot id " + ref);
+        }
+        return obj;
+    }
+}
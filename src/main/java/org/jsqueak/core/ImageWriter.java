@@ -0,0 +1,382 @@
+package org.jsqueak.core;
+
+import org.jsqueak.SqueakConfig;
+import org.jsqueak.uilts.SqueakLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the object memory as a Squeak image (format 6502), readable by SqueakImage and by other Squeak VMs.
+ * <p>
+ * {@link #capture} walks the object table, takes the class, header fields and body of every object
+ * and assigns its oop, the byte offset of its base header. {@link #writeTo} then encodes the objects
+ * one by one into a direct buffer, which is written to the file channel whenever it fills up, deflated
+ * on the way if gzip output is requested.
+ * <p>
+ * A plain capture only refers to the bodies of the live objects, so it must be written before the
+ * interpreter runs again. A copying capture clones every pointer and bits array, so it stays consistent
+ * while the interpreter goes on, and can be written by another thread.
+ * <p>
+ * Every capture starts a new base for delta snapshots: the objects are marked clean and get
+ * their snapshot id from their place in this image.
+ */
+class ImageWriter {
+
+    private final static int ImageVersion = 6502;
+    private final static int ImageHeaderSize = 64;
+    private final static int BaseAddress = 0;  // oops are written as offsets from the start of the object memory
+
+    private final static int MaxShortSize = 63;  // largest size (in words, with base header) in a base header
+
+    // The captured view, indexed in object table order
+    private final int count;
+    private final Object[] classes;
+    private final short[] formats;
+    private final short[] hashes;
+    private final Object[][] pointers;
+    private final Object[] bits;
+
+    private final IdentityHashMap<Object, Integer> oops;
+    private final IdentityHashMap<Object, Integer> compactClasses;
+    private final Object nilObj;
+    private final int specialObjectsOop;
+    private final int lastHash;
+    private final int savedWindowSize;
+    private final int endOfMemory;
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private Deflater deflater;
+    private CRC32 crc;
+    private ByteBuffer deflated;
+    private final CRC32 fileChecksum = new CRC32();  // of the file as written, compressed or not
+    private long fileLength;
+
+    private ImageWriter(SqueakObject specialObjectsArray, boolean copy) {
+        int length = SqueakVM.objectMemory.getObjectTableLength();
+        classes = new Object[length];
+        formats = new short[length];
+        hashes = new short[length];
+        pointers = new Object[length][];
+        bits = new Object[length];
+        oops = new IdentityHashMap<>(length);
+        compactClasses = new IdentityHashMap<>(64);
+        nilObj = specialObjectsArray.getPointer(Squeak.splOb_NilObject);
+
+        Object[] ccArray = ((SqueakObject) specialObjectsArray.getPointer(Squeak.splOb_CompactClasses)).getPointers();
+        for (int i = 0; i < ccArray.length && i < 31; i++) {
+            if (ccArray[i] != nilObj) {
+                compactClasses.put(ccArray[i], i + 1);
+            }
+        }
+
+        int n = 0;
+        int addr = 0;
+        for (int i = 0; i < length; i++) {
+            WeakReference<Object> ref = SqueakVM.objectMemory.getObjectAt(i);
+            SqueakObject obj = ref == null ? null : (SqueakObject) ref.get();
+            if (obj == null) {
+                continue;
+            }
+            obj.ensureInstalled();
+            classes[n] = obj.sqClass;
+            formats[n] = obj.format;
+            hashes[n] = obj.hash;
+            pointers[n] = copy && obj.pointers != null ? obj.pointers.clone() : obj.pointers;
+            if (obj instanceof SqueakFloat) {
+                bits[n] = ((SqueakFloat) obj).value;  // written as its two words
+            } else {
+                bits[n] = copy ? copyOf(obj.bits) : obj.bits;
+            }
+            int size = bodyWords(n) + 1;
+            addr += extraHeaderWords(n, size) * 4;
+            oops.put(obj, addr + BaseAddress);
+            obj.snapshotId = addr + 4;  // as given by SqueakImage.readImage
+            obj.dirty = false;
+            addr += size * 4;
+            n++;
+        }
+        count = n;
+        endOfMemory = addr;
+        specialObjectsOop = oops.get(specialObjectsArray);
+        lastHash = SqueakVM.objectMemory.getLastHash();
+        savedWindowSize = savedWindowSize(specialObjectsArray);
+    }
+
+    private static Object copyOf(Object bits) {
+        if (bits instanceof int[]) {
+            return ((int[]) bits).clone();
+        }
+        if (bits instanceof byte[]) {
+            return ((byte[]) bits).clone();
+        }
+        return bits;  // null, or an immutable Double
+    }
+
+    /**
+     * Capture the object memory for writing it as an image.
+     *
+     * @param copy copy all object bodies, so that the capture can be written while the interpreter runs
+     */
+    static ImageWriter capture(SqueakObject specialObjectsArray, boolean copy) {
+        return new ImageWriter(specialObjectsArray, copy);
+    }
+
+    /**
+     * Write the captured objects to imageFile. The image is written next to its final
+     * location and renamed, so a failure never leaves a truncated image behind.
+     *
+     * @param compress write gzip output, as read by SqueakImage, instead of a raw image
+     */
+    void writeTo(File imageFile, boolean compress) throws IOException {
+        SqueakLogger.log_D("Start writing image at " + System.currentTimeMillis());
+        File dir = imageFile.getAbsoluteFile().getParentFile();
+        File tmp = new File(dir, imageFile.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            open(channel, compress);
+            writeHeader();
+            for (int i = 0; i < count; i++) {
+                writeObject(i);
+            }
+            close();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        SqueakLogger.log_D("Done writing image at " + System.currentTimeMillis());
+    }
+
+    /**
+     * The checksum of the image file written by writeTo, as computed by SqueakImage when loading it.
+     */
+    long fileChecksum() {
+        return fileChecksum.getValue();
+    }
+
+    long fileLength() {
+        return fileLength;
+    }
+
+    /**
+     * The first snapshot id beyond the objects of this image.
+     */
+    int nextSnapshotId() {
+        return endOfMemory + 4;
+    }
+
+    //Layout
+
+    private int compactClassIndex(int i) {
+        Integer index = compactClasses.get(classes[i]);
+        return index == null ? 0 : index;
+    }
+
+    private int extraHeaderWords(int i, int size) {
+        if (size > MaxShortSize) {
+            return 2;  //size and class
+        }
+        return compactClassIndex(i) == 0 ? 1 : 0;
+    }
+
+    private int bodyWords(int i) {
+        int nPointers = pointers[i] == null ? 0 : pointers[i].length;
+        if (formats[i] < 5) {
+            return nPointers;
+        }
+        if (formats[i] < 8) {
+            if (bits[i] instanceof Double) {
+                return 2;
+            }
+            return bits[i] == null ? 0 : ((int[]) bits[i]).length;
+        }
+        return nPointers + ((byteCount(i) + 3) / 4);
+    }
+
+    private int byteCount(int i) {
+        return bits[i] == null ? 0 : ((byte[]) bits[i]).length;
+    }
+
+    //Encoding
+
+    private void open(FileChannel channel, boolean compress) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(SqueakConfig.Snapshot.BUFFER_SIZE);  // big endian, like the image
+        if (compress) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            crc = new CRC32();
+            deflated = ByteBuffer.allocateDirect(SqueakConfig.Snapshot.BUFFER_SIZE);
+            // gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+            ByteBuffer gzipHeader = ByteBuffer.wrap(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 255});
+            writeFully(gzipHeader);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        putWord(ImageVersion);
+        putWord(ImageHeaderSize);
+        putWord(endOfMemory);
+        putWord(BaseAddress);
+        putWord(specialObjectsOop);
+        putWord(lastHash);
+        putWord(savedWindowSize);
+        putWord(0);  // fullScreenFlag
+        putWord(0);  // extraVMMemory
+        for (int i = 9 * 4; i < ImageHeaderSize; i += 4) {
+            putWord(0);
+        }
+    }
+
+    private static int savedWindowSize(SqueakObject specialObjectsArray) {
+        Object display = specialObjectsArray.getPointer(Squeak.splOb_TheDisplay);
+        if (display instanceof SqueakObject && ((SqueakObject) display).pointersSize() > Squeak.Form_height) {
+            Object width = ((SqueakObject) display).getPointer(Squeak.Form_width);
+            Object height = ((SqueakObject) display).getPointer(Squeak.Form_height);
+            if (width instanceof Integer && height instanceof Integer) {
+                return ((Integer) width << 16) | ((Integer) height & 0xFFFF);
+            }
+        }
+        return (640 << 16) | 480;
+    }
+
+    private void writeObject(int i) throws IOException {
+        int size = bodyWords(i) + 1;
+        int ccIndex = compactClassIndex(i);
+        int format = formats[i];
+        if (format >= 8) {
+            //low 2 bits of byte formats count the unused bytes of the last word
+            format = (format & ~3) | ((4 - (byteCount(i) & 3)) & 3);
+        }
+        int baseHeader = ((hashes[i] & 4095) << 17) | (ccIndex << 12) | (format << 8);
+
+        switch (extraHeaderWords(i, size)) {
+            case 2:
+                putWord((size << 2) | Squeak.HeaderTypeSizeAndClass);
+                putWord(oopOf(classes[i]) | Squeak.HeaderTypeSizeAndClass);
+                putWord(baseHeader | Squeak.HeaderTypeSizeAndClass);
+                break;
+            case 1:
+                putWord(oopOf(classes[i]) | Squeak.HeaderTypeClass);
+                putWord(baseHeader | (size << 2) | Squeak.HeaderTypeClass);
+                break;
+            default:
+                putWord(baseHeader | (size << 2) | Squeak.HeaderTypeShort);
+        }
+
+        if (pointers[i] != null) {
+            for (Object ptr : pointers[i]) {
+                putWord(oopOf(ptr));
+            }
+        }
+        Object body = bits[i];
+        if (body instanceof int[]) {
+            for (int word : (int[]) body) {
+                putWord(word);
+            }
+        } else if (body instanceof byte[]) {
+            putBytes((byte[]) body);
+        } else if (body instanceof Double) {
+            long floatBits = Double.doubleToRawLongBits((Double) body);
+            putWord((int) (floatBits >>> 32));
+            putWord((int) floatBits);
+        }
+    }
+
+    private int oopOf(Object ptr) throws IOException {
+        if (ptr instanceof Integer) {
+            return ((Integer) ptr << 1) | 1;
+        }
+        if (ptr == null) {
+            ptr = nilObj;  // unused slots, e.g. above the stack pointer of a context
+        }
+        Integer oop = oops.get(ptr);
+        if (oop == null) {
+            throw new IOException("Pointer to an object outside the object table: " + ptr);
+        }
+        return oop;
+    }
+
+    private void putWord(int word) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush();
+        }
+        buffer.putInt(word);
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+        for (int pad = (4 - (bytes.length & 3)) & 3; pad > 0; pad--) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) 0);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        if (deflater == null) {
+            writeFully(buffer);
+        } else {
+            crc.update(buffer.duplicate());
+            // the deflater keeps its input buffer, so give it a view that stays empty once consumed
+            deflater.setInput(buffer.duplicate());
+            while (!deflater.needsInput()) {
+                drainDeflater(Deflater.NO_FLUSH);
+            }
+        }
+        buffer.clear();
+    }
+
+    private void drainDeflater(int flushMode) throws IOException {
+        deflated.clear();
+        deflater.deflate(deflated, flushMode);
+        deflated.flip();
+        writeFully(deflated);
+    }
+
+    private void close() throws IOException {
+        flush();
+        if (deflater != null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drainDeflater(Deflater.NO_FLUSH);
+            }
+            // gzip member trailer: crc and uncompressed size, little endian
+            ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt((int) crc.getValue());
+            trailer.putInt((int) deflater.getBytesRead());
+            trailer.flip();
+            writeFully(trailer);
+            deflater.end();
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        fileChecksum.update(src.duplicate());
+        fileLength += src.remaining();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.jsqueak.core;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * Weak lists of the instances of each class, so that someInstance and nextInstance
+ * (primitives 77 and 78) cost O(instances of the class) instead of a walk over the object table.
+ * <p>
+ * The lists share the weak references of the object table. An object is registered before its
+ * class is set, so new objects are only queued and filed under their class on the next query
+ * (or when the queue gets long). Each object knows its position in its list, see
+ * {@link SqueakObject#instIndex}; the lists are compacted when they are full.
+ */
+class InstanceRegistry {
+
+    private final static int PendingMaxSize = 1 << 12;  // queued objects before they are filed anyway
+    private final static int ListMinSize = 8;
+
+    private final WeakHashMap<Object, Instances> classes = new WeakHashMap<>();
+    private final ArrayList<WeakReference<Object>> pending = new ArrayList<>();
+
+    /**
+     * File an object under its class right away; its class must be set.
+     */
+    void add(WeakReference<Object> ref, SqueakObject obj) {
+        Instances instances = classes.get(obj.sqClass);
+        if (instances == null) {
+            instances = new Instances();
+            classes.put(obj.sqClass, instances);
+        }
+        instances.add(ref, obj);
+    }
+
+    /**
+     * Queue an object that has just been registered in the object table.
+     */
+    void registered(WeakReference<Object> ref) {
+        if (pending.size() >= PendingMaxSize) {
+            flush();  // the objects queued so far have their class by now
+        }
+        pending.add(ref);
+    }
+
+    private void flush() {
+        for (WeakReference<Object> ref : pending) {
+            SqueakObject obj = (SqueakObject) ref.get();
+            if (obj != null) {
+                add(ref, obj);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Move obj to the list of its new class.
+     */
+    void classChanged(SqueakObject obj, Object oldClass) {
+        Instances instances = classes.get(oldClass);
+        WeakReference<Object> ref = instances == null ? null : instances.remove(obj);
+        if (ref != null) {
+            add(ref, obj);
+        }
+        // otherwise obj is still queued, and is filed under the new class anyway
+    }
+
+    /**
+     * @return the first instance of sqClass, or null if there is none
+     */
+    SqueakObject first(SqueakObject sqClass) {
+        flush();
+        Instances instances = classes.get(sqClass);
+        return instances == null ? null : instances.from(0);
+    }
+
+    /**
+     * @return the instance of the class of prior that follows prior, or null if there is none
+     */
+    SqueakObject next(SqueakObject prior) {
+        flush();
+        Instances instances = classes.get(prior.sqClass);
+        if (instances == null || !instances.contains(prior)) {
+            return null;
+        }
+        return instances.from(prior.instIndex + 1);
+    }
+
+    private static class Instances {
+        @SuppressWarnings("unchecked")
+        private WeakReference<Object>[] refs = (WeakReference<Object>[]) new WeakReference<?>[ListMinSize];
+        private int size;
+
+        void add(WeakReference<Object> ref, SqueakObject obj) {
+            if (size == refs.length) {
+                compact();
+                if (size >= refs.length >> 1) {
+                    refs = Arrays.copyOf(refs, refs.length * 2);
+                }
+            }
+            obj.instIndex = size;
+            refs[size++] = ref;
+        }
+
+        boolean contains(SqueakObject obj) {
+            int index = obj.instIndex;
+            return index < size && refs[index] != null && refs[index].get() == obj;
+        }
+
+        WeakReference<Object> remove(SqueakObject obj) {
+            if (!contains(obj)) {
+                return null;
+            }
+            WeakReference<Object> ref = refs[obj.instIndex];
+            refs[obj.instIndex] = null;
+            return ref;
+        }
+
+        SqueakObject from(int index) {
+            for (int i = index; i < size; i++) {
+                WeakReference<Object> ref = refs[i];
+                Object obj = ref == null ? null : ref.get();
+                if (obj != null) {
+                    return (SqueakObject) obj;
+                }
+            }
+            return null;
+        }
+
+        // Drop removed and cleared entries, retaining the order of the others
+        private void compact() {
+            int writePtr = 0;
+            for (int readPtr = 0; readPtr < size; readPtr++) {
+                WeakReference<Object> ref = refs[readPtr];
+                Object obj = ref == null ? null : ref.get();
+                if (obj != null) {
+                    ((SqueakObject) obj).instIndex = writePtr;
+                    refs[writePtr++] = ref;
+                }
+            }
+            Arrays.fill(refs, writePtr, size, null);
+            size = writePtr;
+        }
+    }
+}
@@ -24,7 +24,7 @@ public class InterpreterHelper {
                 return null;
             }*/
 
-            Object tmp = target.pointers[index];
+            Object tmp = target.getPointer(index);
 
             return (T) tmp;
         }
@@ -34,7 +34,7 @@ public class InterpreterHelper {
     public static int fetchIntegerOfObject(int index, Object obj) {
         if (obj instanceof SqueakObject) {
             SqueakObject target = (SqueakObject) obj;
-            Object tmp = target.pointers[index];
+            Object tmp = target.getPointer(index);
             if (tmp instanceof Integer) {
                 return (int) tmp;
             }
@@ -116,7 +116,7 @@ public class InterpreterHelper {
 
     public static boolean assertClassOfIs(Object target, Object classObject) {
         if (target instanceof SqueakObject) {
-            return ((SqueakObject) target).sqClass == classObject;
+            return ((SqueakObject) target).getSqClass() == classObject;
         }
         return false;
     }
@@ -141,10 +141,7 @@ public class InterpreterHelper {
     }
 
     public static boolean isSTFloat(Object obj) {
-        if (isSTInteger(obj)) {
-            return false;
-        }
-        return ((SqueakObject) obj).getSqClass() == specialObjects[Squeak.splOb_ClassFloat];
+        return obj instanceof SqueakFloat;
     }
 
     // Java rounds toward zero, we also need towards -infinity, so...
@@ -0,0 +1,243 @@
+package org.jsqueak.core;
+
+import org.jsqueak.SqueakConfig;
+import org.jsqueak.uilts.SqueakLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * The "linked heap" is a JSqueak-native cache of an already installed object graph.
+ * It is written after a successful boot from a Squeak image, and lets the next start
+ * skip gzip inflating, header parsing, oop mapping and pointer install.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ *   header:  magic, version, source checksum (long), source length (long),
+ *            lastHash, index of specialObjectsArray, object count
+ *   floats:  count, followed by the index of each Float
+ *   objects: format (byte), hash (short), class ref, pointer count (-1 if none), pointer refs,
+ *            bits tag (byte) followed by the bytes, words or double bits
+ * </pre>
+ * A ref is a SmallInteger as (value << 1) | 1, or an object table index as index << 1.
+ * A ref of -2 (index -1) stands for a missing (null) pointer.
+ * <p>
+ * Loading maps the file and creates all object shells first, so that every ref can be
+ * resolved in one linear pass over the data.
+ */
+class LinkedHeap {
+
+    private final static int MAGIC = 0x4A534848;  // "JSHH"
+    private final static int VERSION = 2;
+
+    private final static byte BITS_NONE = 0;
+    private final static byte BITS_BYTES = 1;
+    private final static byte BITS_WORDS = 2;
+    private final static byte BITS_DOUBLE = 3;
+
+    private final static int NULL_REF = -2;
+
+    private LinkedHeap() {
+    }
+
+    /**
+     * The cache file used for an image, located in {@link SqueakConfig.HeapCache#DIRECTORY}.
+     */
+    static File cacheFileFor(File imageFile) {
+        return new File(SqueakConfig.HeapCache.DIRECTORY, imageFile.getName() + ".heap");
+    }
+
+    /**
+     * Load the object graph from cacheFile into the object memory.
+     *
+     * @return the specialObjectsArray, or null if there is no usable cache for this source image
+     * (missing, stale or damaged). Nothing is registered in the object memory in that case.
+     */
+    static SqueakObject read(File cacheFile, long sourceChecksum, long sourceLength) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        SqueakLogger.log_D("Start reading linked heap at " + System.currentTimeMillis());
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                SqueakLogger.log_D("Ignoring linked heap of unknown format: " + cacheFile);
+                return null;
+            }
+            if (in.getLong() != sourceChecksum || in.getLong() != sourceLength) {
+                SqueakLogger.log_D("Ignoring stale linked heap: " + cacheFile);
+                return null;
+            }
+            int lastHash = in.getInt();
+            int specialObjectsIndex = in.getInt();
+            int count = in.getInt();
+
+            SqueakObject[] objects = new SqueakObject[count];
+            int floatCount = in.getInt();
+            for (int i = 0; i < floatCount; i++) {
+                objects[in.getInt()] = new SqueakFloat();
+            }
+            for (int i = 0; i < count; i++) {
+                if (objects[i] == null) {
+                    objects[i] = new SqueakObject();
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                SqueakObject obj = objects[i];
+                obj.format = in.get();
+                obj.hash = in.getShort();
+                obj.sqClass = decodeRef(in.getInt(), objects);
+                int nPointers = in.getInt();
+                if (nPointers >= 0) {
+                    Object[] pointers = new Object[nPointers];
+                    for (int j = 0; j < nPointers; j++) {
+                        pointers[j] = decodeRef(in.getInt(), objects);
+                    }
+                    obj.pointers = pointers;
+                }
+                switch (in.get()) {
+                    case BITS_NONE:
+                        break;
+                    case BITS_BYTES: {
+                        byte[] bytes = new byte[in.getInt()];
+                        in.get(bytes);
+                        obj.bits = bytes;
+                        break;
+                    }
+                    case BITS_WORDS: {
+                        int[] words = new int[in.getInt()];
+                        in.asIntBuffer().get(words);
+                        in.position(in.position() + (words.length * 4));
+                        obj.bits = words;
+                        break;
+                    }
+                    case BITS_DOUBLE:
+                        ((SqueakFloat) obj).value = Double.longBitsToDouble(in.getLong());
+                        break;
+                    default:
+                        throw new IOException("Bad bits tag for object " + i);
+                }
+            }
+
+            // Only a complete graph is made visible to the object memory
+            for (int i = 0; i < count; i++) {
+                SqueakVM.objectMemory.registerObject(objects[i]);
+            }
+            SqueakVM.objectMemory.setLastHash(lastHash);
+            SqueakLogger.log_D("Done reading linked heap at " + System.currentTimeMillis());
+            return objects[specialObjectsIndex];
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | ClassCastException e) {
+            SqueakLogger.log_E("Cannot read linked heap " + cacheFile + ": " + e);
+            return null;
+        }
+    }
+
+    private static Object decodeRef(int ref, SqueakObject[] objects) {
+        if ((ref & 1) == 1) {
+            return InterpreterHelper.smallFromInt(ref >> 1);
+        }
+        return ref == NULL_REF ? null : objects[ref >> 1];
+    }
+
+    /**
+     * Write all objects of the object memory to cacheFile, in object table order.
+     * The file is written next to its final location and renamed, so a crash
+     * never leaves a truncated cache behind.
+     */
+    static void write(File cacheFile, long sourceChecksum, long sourceLength, SqueakObject specialObjectsArray) throws IOException {
+        SqueakLogger.log_D("Start writing linked heap at " + System.currentTimeMillis());
+        ArrayList<SqueakObject> objects = new ArrayList<>(SqueakVM.objectMemory.getObjectTableLength());
+        ArrayList<Integer> floats = new ArrayList<>();
+        IdentityHashMap<Object, Integer> indices = new IdentityHashMap<>(SqueakVM.objectMemory.getObjectTableLength());
+        int length = SqueakVM.objectMemory.getObjectTableLength();
+        for (int i = 0; i < length; i++) {
+            WeakReference<Object> ref = SqueakVM.objectMemory.getObjectAt(i);
+            Object obj = ref == null ? null : ref.get();
+            if (obj != null) {
+                ((SqueakObject) obj).ensureInstalled();  // the cache holds installed objects only
+                if (obj instanceof SqueakFloat) {
+                    floats.add(objects.size());
+                }
+                indices.put(obj, objects.size());
+                objects.add((SqueakObject) obj);
+            }
+        }
+
+        File dir = cacheFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        File tmp = new File(dir, cacheFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceChecksum);
+            out.writeLong(sourceLength);
+            out.writeInt(SqueakVM.objectMemory.getLastHash());
+            out.writeInt(indices.get(specialObjectsArray));
+            out.writeInt(objects.size());
+            out.writeInt(floats.size());
+            for (int index : floats) {
+                out.writeInt(index);
+            }
+            for (SqueakObject obj : objects) {
+                out.writeByte(obj.format);
+                out.writeShort(obj.hash);
+                out.writeInt(encodeRef(obj.sqClass, indices));
+                if (obj.pointers == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(obj.pointers.length);
+                    for (Object ptr : obj.pointers) {
+                        out.writeInt(encodeRef(ptr, indices));
+                    }
+                }
+                Object bits = obj.bits;
+                if (obj instanceof SqueakFloat) {
+                    out.writeByte(BITS_DOUBLE);
+                    out.writeLong(Double.doubleToRawLongBits(((SqueakFloat) obj).value));
+                } else if (bits instanceof byte[]) {
+                    out.writeByte(BITS_BYTES);
+                    out.writeInt(((byte[]) bits).length);
+                    out.write((byte[]) bits);
+                } else if (bits instanceof int[]) {
+                    out.writeByte(BITS_WORDS);
+                    out.writeInt(((int[]) bits).length);
+                    for (int word : (int[]) bits) {
+                        out.writeInt(word);
+                    }
+                } else {
+                    out.writeByte(BITS_NONE);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        SqueakLogger.log_D("Done writing linked heap at " + System.currentTimeMillis());
+    }
+
+    private static int encodeRef(Object ptr, IdentityHashMap<Object, Integer> indices) throws IOException {
+        if (ptr == null) {
+            return NULL_REF;
+        }
+        if (ptr instanceof Integer) {
+            return ((Integer) ptr << 1) | 1;
+        }
+        Integer index = indices.get(ptr);
+        if (index == null) {
+            throw new IOException("Pointer to an object outside the object table: " + ptr);
+        }
+        return index << 1;
+    }
+}
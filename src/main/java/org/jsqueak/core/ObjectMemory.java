@@ -1,36 +1,52 @@
 package org.jsqueak.core;
 
+import org.jsqueak.SqueakConfig;
+import org.jsqueak.uilts.SqueakLogger;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * ObjectMemory for memory management.
- * Use ArrayList instead of Array for objectTable
- * The memory usage and GC performance are almost the same as the old implementation
+ * The objectTable is a chunked WeakObjectTable instead of an Array
+ * <p>
+ * The slots of the object table are registered with a ReferenceQueue, so the number of slots
+ * cleared by the Java GC is known without scanning the table. Allocation drains the queue and
+ * compacts the table once enough slots are cleared; System.gc() is only run on request of the
+ * image (primitives 130 and 131).
  */
 public class ObjectMemory {
 
     private final static int OTMinSize = 120000;
     private final static int OTMaxSize = 640000;  // not used
-    private final static int OTGrowSize = 10000;
+    private final static int OTCompactMinNulls = 10000;  // cleared slots before the table is compacted
+    private final static int InstallChunkSize = 4096;  // objects installed per parallel task
+    private final static int ScanChunkSize = 8192;  // objects scanned per parallel task
 
-    private final SqueakVM vm;
+    private final ReferenceQueue<Object> clearedSlots = new ReferenceQueue<>();
+    private final WeakObjectTable objectTable;
 
-    private final ArrayList<WeakReference<Object>> objectTable;
+    private int lastHash;
 
-    private int currentCapacity;
-    private int lastObjectIndex;
+    private int nullCount = 0;  // cleared slots still in the table
 
-    private int lastHash;
+    // State kept for lazy install, released once every image object is installed
+    private Map<Object, Object> lazyOopMap;
+    private Integer[] lazyCCArray;
+    private int lazyPending;
 
-    private int nullCount = 0;
+    // Built on first use if SqueakConfig.INSTANCE_INDEX is set
+    private InstanceRegistry instances;
 
     public ObjectMemory() {
-        currentCapacity = OTMinSize;
-        this.objectTable = new ArrayList<>(currentCapacity);
-        vm = SqueakVM.INSTANCE;
+        this.objectTable = new WeakObjectTable(OTMinSize, clearedSlots);
     }
 
     public int getLastHash() {
@@ -55,13 +71,10 @@ public class ObjectMemory {
     public boolean bulkBecome(Object[] fromPointers, Object[] toPointers, boolean twoWay) {
         int n = fromPointers.length;
         Object p;
-        Object ptr;
-        Object[] body;
-        Object mut;
-        SqueakObject obj;
         if (n != toPointers.length)
             return false;
-        Hashtable<Object, Object> mutations = new Hashtable<>(n * 4 * (twoWay ? 2 : 1));
+        // only read while the heap is scanned, so the parallel tasks can share it
+        IdentityHashMap<Object, Object> mutations = new IdentityHashMap<>(n * (twoWay ? 2 : 1));
         for (int i = 0; i < n; i++) {
             p = fromPointers[i];
             if (!(p instanceof SqueakObject))
@@ -81,94 +94,193 @@ public class ObjectMemory {
                 else
                     mutations.put(p, fromPointers[i]);
             }
-        }
-        final int length = objectTable.size();
-        for (int i = 0; i < length; i++) {
-            // Now, for every object...
-            obj = (SqueakObject) objectTable.get(i).get();
-            if (obj != null) {
-                // mutate the class
-                mut = (SqueakObject) mutations.get(obj.sqClass);
-                if (mut != null)
-                    obj.sqClass = mut;
-                if ((body = obj.pointers) != null) {
-                    // and mutate body pointers
-                    for (int j = 0; j < body.length; j++) {
-                        ptr = body[j];
-                        mut = mutations.get(ptr);
-                        if (mut != null)
-                            body[j] = mut;
-                    }
+            if (canSwapContents(fromPointers, toPointers)) {
+                for (int i = 0; i < n; i++) {
+                    swapContents((SqueakObject) fromPointers[i], (SqueakObject) toPointers[i]);
                 }
+                return true;
+            }
+        }
+        if (lazyOopMap != null) {
+            // Objects not installed yet still refer to oops; make them decode to the mutated objects
+            lazyOopMap.replaceAll((oop, o) -> mutations.getOrDefault(o, o));
+        }
+        ArrayList<Object> classChanges = ForkJoinPool.commonPool().invoke(new BecomeTask(mutations, 0, objectTable.size()));
+        if (instances != null && classChanges != null) {
+            for (int i = 0; i < classChanges.size(); i += 2) {
+                instances.classChanged((SqueakObject) classChanges.get(i), classChanges.get(i + 1));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A two-way become can swap the contents of each pair instead of redirecting every reference
+     * in the heap, unless the interpreter holds on to one of the objects or to one of their parts.
+     */
+    private boolean canSwapContents(Object[] fromPointers, Object[] toPointers) {
+        for (int i = 0; i < fromPointers.length; i++) {
+            SqueakObject from = (SqueakObject) fromPointers[i];
+            SqueakObject to = (SqueakObject) toPointers[i];
+            if (from.getClass() != to.getClass() || isHeldByInterpreter(from) || isHeldByInterpreter(to)) {
+                return false;
             }
         }
         return true;
     }
 
+    private static boolean isHeldByInterpreter(SqueakObject obj) {
+        obj.ensureInstalled();
+        if (SqueakVM.specialObjects == null) {
+            return true;  // no interpreter state to check against yet
+        }
+        if (obj == SqueakVM.nilObj || obj == SqueakVM.falseObj || obj == SqueakVM.trueObj
+                || obj.pointers == SqueakVM.specialObjects || obj.pointers == SqueakVM.specialSelectors) {
+            return true;
+        }
+        // the interpreter caches the active context, its method and bytecodes
+        Object cls = obj.sqClass;
+        return obj.format >= 12
+                || cls == SqueakVM.specialObjects[Squeak.splOb_ClassMethodContext]
+                || cls == SqueakVM.specialObjects[Squeak.splOb_ClassBlockContext];
+    }
+
+    /**
+     * Swap everything that makes up the Squeak identity of a and b, so that every reference to a
+     * now refers to the former b and vice versa. The object table slots stay with the Java objects.
+     */
+    private void swapContents(SqueakObject a, SqueakObject b) {
+        short hash = a.hash;
+        a.hash = b.hash;
+        b.hash = hash;
+        short format = a.format;
+        a.format = b.format;
+        b.format = format;
+        Object sqClass = a.sqClass;
+        a.sqClass = b.sqClass;
+        b.sqClass = sqClass;
+        Object[] pointers = a.pointers;
+        a.pointers = b.pointers;
+        b.pointers = pointers;
+        Object bits = a.bits;
+        a.bits = b.bits;
+        b.bits = bits;
+        if (a instanceof SqueakFloat) {
+            double value = ((SqueakFloat) a).value;
+            ((SqueakFloat) a).value = ((SqueakFloat) b).value;
+            ((SqueakFloat) b).value = value;
+        }
+        a.dirty = true;
+        b.dirty = true;
+        if (instances != null && a.sqClass != b.sqClass) {
+            instances.classChanged(a, b.sqClass);
+            instances.classChanged(b, a.sqClass);
+        }
+    }
+
     //Enumeration...
     public SqueakObject nextInstance(int startingIndex, SqueakObject sqClass) {
         //if sqClass is null, then find next object, else find next instance of sqClass
         final int length = objectTable.size();
-        for (int i = startingIndex; i < length; i++) {
+        // most searches end close by, so only the rest of the table is searched in parallel
+        int end = Math.min(length, startingIndex + ScanChunkSize);
+        SqueakObject obj = findInstance(startingIndex, end, sqClass);
+        if (obj == null && end < length) {
+            // a lazy install is not thread safe
+            obj = lazyOopMap == null
+                    ? ForkJoinPool.commonPool().invoke(new FindInstanceTask(sqClass, end, length))
+                    : findInstance(end, length, sqClass);
+        }
+        return obj == null ? SqueakVM.nilObj : obj;  // Return nil if none found
+    }
+
+    private SqueakObject findInstance(int from, int to, SqueakObject sqClass) {
+        for (int i = from; i < to; i++) {
             // For every object...
-            SqueakObject obj = (SqueakObject) objectTable.get(i).get();
-            if (obj != null && (sqClass == null | obj.sqClass == sqClass)) {
-                lastObjectIndex = i; // save hint for next scan
+            SqueakObject obj = (SqueakObject) objectTable.objectAt(i);
+            if (obj != null && (sqClass == null | obj.getSqClass() == sqClass)) {
                 return obj;
             }
         }
-        return SqueakVM.nilObj;  // Return nil if none found
+        return null;
     }
 
-    public int otIndexOfObject(SqueakObject lastObj) {
-        // hint: lastObj should be at lastObjectIndex
-        SqueakObject obj = (SqueakObject) objectTable.get(lastObjectIndex).get();
-        if (obj == lastObj) {
-            return lastObjectIndex;
-        } else {
+    public SqueakObject someInstance(SqueakObject sqClass) {
+        if (SqueakConfig.INSTANCE_INDEX) {
+            SqueakObject obj = instanceRegistry().first(sqClass);
+            return obj == null ? SqueakVM.nilObj : obj;
+        }
+        return nextInstance(0, sqClass);
+    }
+
+    public SqueakObject instanceAfter(SqueakObject priorInstance) {
+        if (SqueakConfig.INSTANCE_INDEX) {
+            SqueakObject obj = instanceRegistry().next(priorInstance);
+            return obj == null ? SqueakVM.nilObj : obj;
+        }
+        return nextInstance(otIndexOfObject(priorInstance) + 1, priorInstance.getSqClass());
+    }
+
+    private InstanceRegistry instanceRegistry() {
+        if (instances == null) {
+            long start = System.nanoTime();
+            InstanceRegistry registry = new InstanceRegistry();
             final int length = objectTable.size();
-            for (int i = 0; i <= length; i++) {
-                // Alas no; have to find it again...
-                obj = (SqueakObject) objectTable.get(i).get();
-                if (obj == lastObj)
-                    return i;
+            for (int i = 0; i < length; i++) {
+                WeakReference<Object> ref = objectTable.get(i);
+                SqueakObject obj = (SqueakObject) ref.get();
+                if (obj != null) {
+                    obj.ensureInstalled();  // its class must be known
+                    registry.add(ref, obj);
+                }
             }
+            instances = registry;
+            SqueakLogger.log_D("Instance registry built in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        return instances;
+    }
+
+    public int otIndexOfObject(SqueakObject lastObj) {
+        // every registered object knows its slot
+        final int length = objectTable.size();
+        int index = lastObj.otIndex;
+        if (index < length && objectTable.objectAt(index) == lastObj) {
+            return index;
+        }
+        for (int i = 0; i < length; i++) {
+            // Alas no; have to find it again...
+            if (objectTable.objectAt(i) == lastObj)
+                return i;
         }
         return -1;  //should not happen
     }
 
     public short registerObject(SqueakObject obj) {
         //All enumerable objects must be registered
-        int currentSize = objectTable.size();
-        if (currentSize + 1 > currentCapacity) {  // reach capacity
-            performGC();
+        drainClearedSlots();
+        // Compacting is linear in the table size, so wait until a good part of it can be reclaimed
+        if (nullCount >= OTCompactMinNulls && nullCount >= (objectTable.size() >> 2)) {
+            reclaimNullOTSlots();
         }
 
-        objectTable.add(new WeakReference<>(obj));
+        obj.otIndex = objectTable.size();
+        WeakReference<Object> ref = objectTable.add(obj);
+        if (instances != null) {
+            instances.registered(ref);
+        }
         lastHash = 13849 + (27181 * lastHash);
         return (short) (lastHash & 0xFFF);
     }
 
-    private void performGC() {
-        //SqueakLogger.log_D("freeSpace " + System.currentTimeMillis() + ", currentObjectCount: " + objectTable.size());
-        for (int i = 0; i < 5; i++) {
-            if (i == 2 && vm != null) {
-                vm.clearCaches(); //only flush caches after two tries
-            }
-            partialGC();
-            if (nullCount >= OTGrowSize) {
-                return; // do not need increase capacity
-            }
+    private void drainClearedSlots() {
+        while (clearedSlots.poll() != null) {
+            nullCount++;
         }
-
-        // Sigh -- really need more space...
-        fullGC();
-        objectTable.ensureCapacity(currentCapacity + OTGrowSize);
-        currentCapacity += OTGrowSize;
     }
 
     public int partialGC() {
         System.gc();
+        drainClearedSlots();
         reclaimNullOTSlots();
         return spaceLeft();
     }
@@ -190,47 +302,217 @@ public class ObjectMemory {
 
     private int reclaimNullOTSlots() {
         // Java GC will null out slots in the weak Object Table.
-        // This procedure compacts the occupied slots (retaining order),
-        // and returns objectTable size after shrink.
+        // Compacting retains the order of the occupied slots.
+        objectTable.compact();
+        // slots cleared but not queued yet are gone as well; they are counted later, which only
+        // makes the next compaction come a little early
         nullCount = 0;
-        int writePtr = 0;
-        int end = objectTable.size() - 1;
-        int orgSize = objectTable.size();
-        for (int readPtr = 0; readPtr <= end; readPtr++) {
-            if (objectTable.get(readPtr) != null && objectTable.get(readPtr).get() != null) {
-                objectTable.set(writePtr, objectTable.get(readPtr));
-                writePtr++;
-            } else {
-                nullCount++;
+        return objectTable.size();
+    }
+
+    /**
+     * Install all objects read from the image file. Once the oop map is complete every install
+     * is independent of the others, so the object table is split into chunks that are installed
+     * in parallel on the common ForkJoin pool.
+     *
+     * @throws IOException if any object cannot be installed; the failure with the lowest
+     *                     object table index is reported, so the result does not depend on scheduling
+     */
+    public void installObjects(Map<Object, Object> oopMap, Integer[] ccArray) throws IOException {
+        if (SqueakConfig.LAZY_INSTALL) {
+            lazyOopMap = oopMap;
+            lazyCCArray = ccArray;
+            lazyPending = objectTable.size();
+            return;
+        }
+        InstallTask task = new InstallTask(oopMap, ccArray, 0, objectTable.size());
+        InstallFailure failure = ForkJoinPool.commonPool().invoke(task);
+        if (failure != null) {
+            throw new IOException("Cannot install object at index " + failure.index, failure.cause);
+        }
+    }
+
+    /**
+     * Install a single image object on first access, see SqueakObject.ensureInstalled().
+     * When the last one is done, the oop map is dropped.
+     */
+    void installLazily(SqueakObject obj) {
+        obj.install(lazyOopMap, lazyCCArray);
+        if (--lazyPending == 0) {
+            lazyOopMap = null;
+            lazyCCArray = null;
+        }
+    }
+
+    /**
+     * Redirect the references of a range of the object table for bulkBecome.
+     * Answers the objects whose class was changed, each followed by its old class, in table order.
+     */
+    @SuppressWarnings("serial")
+    private class BecomeTask extends RecursiveTask<ArrayList<Object>> {
+        private final IdentityHashMap<Object, Object> mutations;
+        private final int from;
+        private final int to;
+
+        BecomeTask(IdentityHashMap<Object, Object> mutations, int from, int to) {
+            this.mutations = mutations;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ArrayList<Object> compute() {
+            if (to - from <= ScanChunkSize) {
+                return becomeRange();
+            }
+            int mid = (from + to) >>> 1;
+            BecomeTask left = new BecomeTask(mutations, from, mid);
+            BecomeTask right = new BecomeTask(mutations, mid, to);
+            left.fork();
+            ArrayList<Object> rightChanges = right.compute();
+            ArrayList<Object> leftChanges = left.join();
+            if (leftChanges == null) {
+                return rightChanges;
             }
+            if (rightChanges != null) {
+                leftChanges.addAll(rightChanges);
+            }
+            return leftChanges;
         }
 
-        // shrink objectTable size
-        ArrayList<WeakReference<Object>> tmp = new ArrayList<>(objectTable);
-        int size = objectTable.size();
-        objectTable.clear();
-        for (int i = 0; i < size; i++) {
-            if (tmp.get(i) != null && tmp.get(i).get() != null) {
-                objectTable.add(tmp.get(i));
+        private ArrayList<Object> becomeRange() {
+            ArrayList<Object> classChanges = null;
+            Object ptr;
+            Object[] body;
+            Object mut;
+            for (int i = from; i < to; i++) {
+                // Now, for every object...
+                SqueakObject obj = (SqueakObject) objectTable.objectAt(i);
+                if (obj != null && obj.uninstalled) {
+                    // its oops may decode to a mutated object now, which a delta snapshot must record
+                    obj.dirty = true;
+                } else if (obj != null) {
+                    // mutate the class
+                    mut = mutations.get(obj.sqClass);
+                    if (mut != null) {
+                        if (classChanges == null) {
+                            classChanges = new ArrayList<>();
+                        }
+                        classChanges.add(obj);
+                        classChanges.add(obj.sqClass);
+                        obj.sqClass = mut;
+                        obj.dirty = true;
+                    }
+                    if ((body = obj.pointers) != null) {
+                        // and mutate body pointers
+                        for (int j = 0; j < body.length; j++) {
+                            ptr = body[j];
+                            mut = mutations.get(ptr);
+                            if (mut != null) {
+                                body[j] = mut;
+                                obj.dirty = true;
+                            }
+                        }
+                    }
+                }
             }
+            return classChanges;
         }
+    }
 
-        return objectTable.size();
+    /**
+     * Find the first object of a range of the object table that is an instance of sqClass
+     * (any object if sqClass is null). The left half wins, so the result is the same as
+     * that of a sequential search.
+     */
+    @SuppressWarnings("serial")
+    private class FindInstanceTask extends RecursiveTask<SqueakObject> {
+        private final SqueakObject sqClass;
+        private final int from;
+        private final int to;
+
+        FindInstanceTask(SqueakObject sqClass, int from, int to) {
+            this.sqClass = sqClass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected SqueakObject compute() {
+            if (to - from <= ScanChunkSize) {
+                return findInstance(from, to, sqClass);
+            }
+            int mid = (from + to) >>> 1;
+            FindInstanceTask left = new FindInstanceTask(sqClass, from, mid);
+            FindInstanceTask right = new FindInstanceTask(sqClass, mid, to);
+            right.fork();
+            SqueakObject found = left.compute();
+            if (found != null) {
+                right.cancel(false);
+                return found;
+            }
+            return right.join();
+        }
     }
 
-    public void installObjects(Hashtable<Object, Object> oopMap, Integer[] ccArray, SqueakObject floatClass) {
-        for (int i = 0; i < objectTable.size(); i++) {
-            // Don't need oldBaseAddr here**
-            if (i == 39823) {
-                // TODO change index to watch Object installing in debug mode
-                int temp = 0;  // foobar statement, set break point here
+    private static class InstallFailure {
+        final int index;
+        final Throwable cause;
+
+        InstallFailure(int index, Throwable cause) {
+            this.index = index;
+            this.cause = cause;
+        }
+
+        static InstallFailure first(InstallFailure a, InstallFailure b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
             }
-            try {
-                SqueakObject t = (SqueakObject) Objects.requireNonNull(objectTable.get(i).get());
-                t.install(oopMap, ccArray, floatClass);
-            } catch (Exception ignored) {
+            return a.index <= b.index ? a : b;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class InstallTask extends RecursiveTask<InstallFailure> {
+        private final Map<Object, Object> oopMap;
+        private final Integer[] ccArray;
+        private final int from;
+        private final int to;
+
+        InstallTask(Map<Object, Object> oopMap, Integer[] ccArray, int from, int to) {
+            this.oopMap = oopMap;
+            this.ccArray = ccArray;
+            this.from = from;
+            this.to = to;
+        }
 
+        @Override
+        protected InstallFailure compute() {
+            if (to - from <= InstallChunkSize) {
+                return installRange();
             }
+            int mid = (from + to) >>> 1;
+            InstallTask left = new InstallTask(oopMap, ccArray, from, mid);
+            InstallTask right = new InstallTask(oopMap, ccArray, mid, to);
+            left.fork();
+            InstallFailure rightFailure = right.compute();
+            return InstallFailure.first(left.join(), rightFailure);
+        }
+
+        private InstallFailure installRange() {
+            for (int i = from; i < to; i++) {
+                // Don't need oldBaseAddr here**
+                try {
+                    SqueakObject t = (SqueakObject) Objects.requireNonNull(objectTable.objectAt(i));
+                    t.install(oopMap, ccArray);
+                } catch (Exception e) {
+                    return new InstallFailure(i, e);  // report the first failure of this chunk only
+                }
+            }
+            return null;
         }
     }
 }
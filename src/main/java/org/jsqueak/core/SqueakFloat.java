@@ -0,0 +1,85 @@
+package org.jsqueak.core;
+
+import java.util.Map;
+
+/**
+ * A Float. Its value is held as a primitive double instead of in bits, so that
+ * making a Float costs a single allocation.
+ * <p>
+ * Every instance of Float must be a SqueakFloat: instantiating the Float class, reading
+ * an image, the linked heap and deltas all create one for a Float.
+ */
+public class SqueakFloat extends SqueakObject {
+
+    double value;
+
+    SqueakFloat(Integer cls, int fmt, int hsh, int[] imageData) {
+        //Initial creation from SqueakImage, with unmapped data
+        super(cls, fmt, hsh, imageData);
+    }
+
+    SqueakFloat() {
+        //Creation of an empty shell, filled in and registered by LinkedHeap or a delta
+    }
+
+    SqueakFloat(SqueakImage img, SqueakObject cls) {
+        //Creation of Floats from Squeak; they have no pointers or bits
+        super(img);
+        sqClass = cls;
+        format = 6;
+    }
+
+    public double getValue() {
+        return getFloatBits();
+    }
+
+    double getFloatBits() {
+        ensureInstalled();
+        return value;
+    }
+
+    void setFloatBits(double value) {
+        this.value = value;
+        dirty = true;
+    }
+
+    /**
+     * The high (index 1) or low (index 2) word of the value, as seen by basicAt:.
+     */
+    int getFloatWord(int oneBasedIndex) {
+        long floatBits = Double.doubleToRawLongBits(getFloatBits());
+        return oneBasedIndex == 1 ? (int) (floatBits >>> 32) : (int) floatBits;
+    }
+
+    void setFloatWord(int oneBasedIndex, int word) {
+        long floatBits = Double.doubleToRawLongBits(getFloatBits());
+        if (oneBasedIndex == 1) {
+            floatBits = ((long) word << 32) | (floatBits & 0xFFFFFFFFL);
+        } else {
+            floatBits = (floatBits & 0xFFFFFFFF00000000L) | (word & 0xFFFFFFFFL);
+        }
+        setFloatBits(Double.longBitsToDouble(floatBits));
+    }
+
+    @Override
+    public int bitsSize() {
+        return 2;
+    }
+
+    @Override
+    SqueakObject cloneIn(SqueakImage img) {
+        SqueakFloat clone = new SqueakFloat(img, getSqClass());
+        clone.value = value;
+        return clone;
+    }
+
+    @Override
+    public void install(Map<Object, Object> oopMap, Integer[] ccArray) {
+        installClass(oopMap, ccArray);
+        int[] words = (int[]) bits;
+        // the low word must not be sign extended
+        value = Double.longBitsToDouble(((long) words[0] << 32) | (words[1] & 0xFFFFFFFFL));
+        bits = null;
+        uninstalled = false;
+    }
+}
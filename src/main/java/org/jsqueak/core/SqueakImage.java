@@ -28,20 +28,19 @@ import org.jsqueak.uilts.SqueakLogger;
 import org.jsqueak.uilts.ObjectUtils;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Daniel Ingalls
@@ -66,6 +65,19 @@ public class SqueakImage {
 
     private File imageFile;
 
+    // Identify the source image for the linked heap (see LinkedHeap)
+    private long sourceChecksum;
+    private long sourceLength;
+    private boolean loadedFromHeapCache = false;
+
+    private Thread snapshotWriter;
+    private long lastSnapshotPauseMillis;
+
+    // The base image that delta snapshots are written against, null until there is one on disk
+    private volatile DeltaSnapshot deltas;
+    private boolean replayedDeltas = false;
+    private int endOfMemory;  // of the image read, see readImage
+
     // FIXME: Access this through a method
     SqueakObject specialObjectsArray;
 
@@ -80,46 +92,177 @@ public class SqueakImage {
         loaded(fn);
     }
 
+    /**
+     * Write a snapshot of the object memory to fn, gzipped if its name ends with ".gz".
+     */
     public void save(File fn) throws IOException {
-        BufferedOutputStream fp = new BufferedOutputStream(new FileOutputStream(fn));
-        GZIPOutputStream gz = new GZIPOutputStream(fp);
-        DataOutputStream ser = new DataOutputStream(gz);
-        writeImage(ser);
-        ser.flush();
-        ser.close();
+        if (snapshotWriter != null && snapshotWriter.isAlive()) {
+            throw new IOException("The previous snapshot is still being written");
+        }
+        long start = System.nanoTime();
+        ImageWriter capture = ImageWriter.capture(specialObjectsArray, false);
+        deltas = null;  // the capture started a new base
+        capture.writeTo(fn, fn.getName().endsWith(".gz"));
+        baseWritten(fn, capture);
+        lastSnapshotPauseMillis = (System.nanoTime() - start) / 1000000;
+        SqueakLogger.log_D("Snapshot pause: " + lastSnapshotPauseMillis + " ms");
+        imageFile = fn;
+    }
+
+    /**
+     * Write the changes since the last snapshot as a delta of the base image last loaded
+     * or written, see DeltaSnapshot.
+     *
+     * @return false if there is no base for the current image file, or it already has
+     * SqueakConfig.Snapshot.MAX_DELTAS deltas; a full snapshot is due then
+     */
+    public boolean saveDelta() throws IOException {
+        DeltaSnapshot chain = deltas;
+        if (chain == null || !chain.imageFile().equals(imageFile)
+                || chain.size() >= SqueakConfig.Snapshot.MAX_DELTAS) {
+            return false;
+        }
+        long start = System.nanoTime();
+        chain.write(specialObjectsArray);
+        lastSnapshotPauseMillis = (System.nanoTime() - start) / 1000000;
+        SqueakLogger.log_D("Snapshot pause: " + lastSnapshotPauseMillis + " ms");
+        return true;
+    }
+
+    private void baseWritten(File fn, ImageWriter capture) {
+        DeltaSnapshot.deleteFrom(fn, 1);
+        deltas = new DeltaSnapshot(fn, capture.fileChecksum(), capture.fileLength(), capture.nextSnapshotId());
+    }
+
+    /**
+     * Like save(File), but the interpreter is only paused while the object memory is copied.
+     * The copy is written on a background thread, which runs whenDone at the end, also if writing failed.
+     *
+     * @return false if the previous background snapshot is still being written
+     */
+    public boolean saveInBackground(File fn, Runnable whenDone) {
+        if (snapshotWriter != null && snapshotWriter.isAlive()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        ImageWriter capture = ImageWriter.capture(specialObjectsArray, true);
+        deltas = null;  // the capture started a new base
+        lastSnapshotPauseMillis = (System.nanoTime() - start) / 1000000;
+        SqueakLogger.log_D("Snapshot pause: " + lastSnapshotPauseMillis + " ms");
+
+        boolean compress = fn.getName().endsWith(".gz");
+        snapshotWriter = new Thread(() -> {
+            try {
+                capture.writeTo(fn, compress);
+                baseWritten(fn, capture);
+            } catch (IOException e) {
+                SqueakLogger.log_E("Cannot save the image: " + e);
+            }
+            whenDone.run();
+        }, "Snapshot writer");
+        snapshotWriter.start();
         imageFile = fn;
+        return true;
+    }
+
+    /**
+     * Wait until the snapshot being written in the background, if any, is on disk.
+     * Must be done before System.exit, which does not wait for the writer thread.
+     */
+    public void awaitSnapshot() {
+        Thread writer = snapshotWriter;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * How long the interpreter was stopped by the last snapshot.
+     */
+    public long getLastSnapshotPauseMillis() {
+        return lastSnapshotPauseMillis;
     }
 
     File imageFile() {
         return imageFile;
     }
 
+    /**
+     * Whether the object graph was read from the linked heap instead of the image file.
+     */
+    boolean isLoadedFromHeapCache() {
+        return loadedFromHeapCache;
+    }
+
+    /**
+     * Write the linked heap for this image, unless the image was itself loaded from one.
+     * Must be called before the interpreter starts to run, while the object graph
+     * is still exactly what was read from the image file.
+     */
+    public void writeHeapCache() {
+        if (!SqueakConfig.HeapCache.ENABLED || loadedFromHeapCache || replayedDeltas) {
+            return;
+        }
+        try {
+            LinkedHeap.write(LinkedHeap.cacheFileFor(imageFile), sourceChecksum, sourceLength, specialObjectsArray);
+        } catch (IOException e) {
+            SqueakLogger.log_E("Cannot write linked heap: " + e);
+        }
+    }
+
     private void loaded(InputStream raw) throws IOException {
-        BufferedInputStream fp = new BufferedInputStream(raw);
-        GZIPInputStream gz = new GZIPInputStream(fp);
-        DataInputStream ser = new DataInputStream(gz);
+        byte[] source = raw.readAllBytes();
+        CRC32 crc = new CRC32();
+        crc.update(source);
+        sourceChecksum = crc.getValue();
+        sourceLength = source.length;
+
+        // The cache holds no snapshot ids, so it cannot take deltas
+        if (SqueakConfig.HeapCache.ENABLED && !DeltaSnapshot.exist(imageFile)) {
+            specialObjectsArray = LinkedHeap.read(LinkedHeap.cacheFileFor(imageFile), sourceChecksum, sourceLength);
+            if (specialObjectsArray != null) {
+                loadedFromHeapCache = true;
+                return;
+            }
+        }
+
+        InputStream body = new ByteArrayInputStream(source);
+        if (isGzipped(source)) {
+            body = new GZIPInputStream(body);  // raw images are read as they are
+        }
+        DataInputStream ser = new DataInputStream(new BufferedInputStream(body));
         readImage(ser);
     }
 
+    private static boolean isGzipped(byte[] source) {
+        return source.length >= 2 && source[0] == (byte) 0x1f && source[1] == (byte) 0x8b;
+    }
+
     private void loaded(File fn) throws IOException {
         FileInputStream unbuffered = new FileInputStream(fn);
         loaded(unbuffered);
         unbuffered.close();
+        if (!loadedFromHeapCache) {
+            deltas = new DeltaSnapshot(fn, sourceChecksum, sourceLength, endOfMemory + 4);
+            specialObjectsArray = deltas.replayAll(specialObjectsArray);
+            replayedDeltas = deltas.size() > 0;
+        }
     }
 
     public short registerObject(SqueakObject obj) {
         return SqueakVM.objectMemory.registerObject(obj);
     }
 
-    private void writeImage(DataOutput ser) throws IOException {
-        // Later...
-        throw new IOException("Image saving is not implemented yet");
-    }
-
     private void readImage(DataInput in) throws IOException {
         //System.err.println("-3.0" + Double.doubleToLongBits(-3.0d));
         System.out.println("Start reading at " + System.currentTimeMillis());
-        Hashtable<Object, Object> oopMap = new Hashtable<>(30000);
+        // Read-only once built, so a plain HashMap can be shared by the parallel install tasks
+        Map<Object, Object> oopMap = new HashMap<>(30000);
         boolean doSwap = false;
         int version = intFromInputSwapped(in, doSwap);
         if (version != 6502) {
@@ -130,7 +273,7 @@ public class SqueakImage {
         }
         System.err.println("version passes with swap= " + doSwap);
         int headerSize = intFromInputSwapped(in, doSwap);
-        int endOfMemory = intFromInputSwapped(in, doSwap); //first unused location in heap
+        endOfMemory = intFromInputSwapped(in, doSwap); //first unused location in heap
         int oldBaseAddr = intFromInputSwapped(in, doSwap); //object memory base address of image
         int specialObjectsOopInt = intFromInputSwapped(in, doSwap); //oop of array of special oops
         SqueakVM.objectMemory.setLastHash(intFromInputSwapped(in, doSwap)); //Should be loaded from, and saved to the image header
@@ -139,6 +282,13 @@ public class SqueakImage {
         int extraVMMemory = intFromInputSwapped(in, doSwap);
         in.skipBytes(headerSize - (9 * 4)); //skip to end of header
 
+        // Objects are only created once all are read, because a Float needs to know the Float class
+        int count = 0;
+        int[] addrs = new int[4096];
+        int[] classInts = new int[4096];
+        short[] formats = new short[4096];
+        short[] hashes = new short[4096];
+        int[][] datas = new int[4096][];
         for (int i = 0; i < endOfMemory; ) {
             int nWords = 0;
             int classInt = 0;
@@ -179,25 +329,50 @@ public class SqueakImage {
                 data[j] = intFromInputSwapped(in, doSwap);
             i = i + (nWords * 4);
 
-            SqueakObject javaObject = new SqueakObject(classInt, (short) format, (short) hash, data);
+            if (count == addrs.length) {
+                addrs = Arrays.copyOf(addrs, count * 2);
+                classInts = Arrays.copyOf(classInts, count * 2);
+                formats = Arrays.copyOf(formats, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+                datas = Arrays.copyOf(datas, count * 2);
+            }
+            addrs[count] = baseAddr;
+            classInts[count] = classInt;
+            formats[count] = (short) format;
+            hashes[count] = (short) hash;
+            datas[count] = data;
+            count++;
+        }
+
+        // Raw class oops of Floats, either the Float class or its compact class index
+        int[] splData = datas[Arrays.binarySearch(addrs, 0, count, specialObjectsOopInt - oldBaseAddr)];
+        int floatOop = splData[Squeak.splOb_ClassFloat];
+        int[] compactClasses = datas[Arrays.binarySearch(addrs, 0, count, splData[Squeak.splOb_CompactClasses] - oldBaseAddr)];
+        for (int i = 0; i < count; i++) {
+            int classInt = classInts[i];
+            boolean isFloat = formats[i] == 6
+                    && (classInt == floatOop || (classInt > 0 && classInt < 32 && compactClasses[classInt - 1] == floatOop));
+            SqueakObject javaObject = isFloat
+                    ? new SqueakFloat(classInt, formats[i], hashes[i], datas[i])
+                    : new SqueakObject(classInt, formats[i], hashes[i], datas[i]);
+            datas[i] = null;
+            javaObject.snapshotId = addrs[i] + 4; //never 0, see DeltaSnapshot
             SqueakVM.objectMemory.registerObject(javaObject);
             //oopMap is from old oops to new objects
             //Why can't we use ints as keys??...
-            oopMap.put(baseAddr + oldBaseAddr, javaObject);
+            oopMap.put(addrs[i] + oldBaseAddr, javaObject);
         }
 
         //Temp version of spl objs needed for makeCCArray; not a good object yet
         specialObjectsArray = (SqueakObject) (oopMap.get(specialObjectsOopInt));
         Integer[] ccArray = makeCCArray(oopMap, specialObjectsArray);
-        int oldOop = specialObjectsArray.oldOopAt(Squeak.splOb_ClassFloat);
-        SqueakObject floatClass = ((SqueakObject) oopMap.get(oldOop));
 
         System.out.println("Start installs at " + System.currentTimeMillis());
-        SqueakVM.objectMemory.installObjects(oopMap, ccArray, floatClass);
+        SqueakVM.objectMemory.installObjects(oopMap, ccArray);
         System.out.println("Done installing at " + System.currentTimeMillis());
 
-        if (SqueakConfig.Debug.DEBUGGABLE) {
-            dumpObjOfImage();
+        if (SqueakConfig.Debug.DEBUGGABLE && !SqueakConfig.LAZY_INSTALL) {
+            dumpObjOfImage();  // would install everything
         }
         //Proper version of spl objs -- it's a good object
         specialObjectsArray = (SqueakObject) (oopMap.get(specialObjectsOopInt));
@@ -226,7 +401,7 @@ public class SqueakImage {
         return outgoing;
     }
 
-    private Integer[] makeCCArray(Hashtable<Object, Object> oopMap, SqueakObject splObs) {
+    private Integer[] makeCCArray(Map<Object, Object> oopMap, SqueakObject splObs) {
         //Makes an aray of the complact classes as oldOops (still need to be mapped)
         int oldOop = splObs.oldOopAt(Squeak.splOb_CompactClasses);
         SqueakObject compactClassesArray = ((SqueakObject) oopMap.get(oldOop));
@@ -24,7 +24,7 @@ THE SOFTWARE.
 package org.jsqueak.core;
 
 import java.util.Arrays;
-import java.util.Hashtable;
+import java.util.Map;
 
 /**
  * @author Daniel Ingalls
@@ -46,6 +46,11 @@ public class SqueakObject {
     Object sqClass;  //squeak class
     Object[] pointers; //pointer fields; fixed as well as indexable
     Object bits;       //indexable binary data (bytes or ints)
+    boolean uninstalled; //still holds raw image data, see ensureInstalled()
+    boolean dirty;       //created or modified since the last snapshot, see DeltaSnapshot
+    int snapshotId;      //place in the last base image, or id given by a delta; 0 if none yet
+    int otIndex;         //slot in the object table, kept current by its compaction
+    int instIndex;       //position in the list of instances of its class, see InstanceRegistry
 
     public SqueakObject(Integer cls, int fmt, int hsh, int[] imageData) {
         //Initial creation from SqueakImage, with unmapped data
@@ -53,11 +58,17 @@ public class SqueakObject {
         format = (short) fmt;
         hash = (short) hsh;
         bits = imageData;
+        uninstalled = true;
+    }
+
+    SqueakObject() {
+        //Creation of an empty shell, filled in and registered by LinkedHeap
     }
 
     public SqueakObject(SqueakImage img) {
         //Creation of stub object (no pointers or bits)
         hash = img.registerObject(this);
+        dirty = true;
     }
 
     public SqueakObject(SqueakImage img, SqueakObject cls, int indexableSize, SqueakObject filler) {
@@ -101,42 +112,59 @@ public class SqueakObject {
 //               followed by indexable bytes (same interpretation of low 2 bits as above)
 
 
+    /**
+     * Objects read from the image are installed on first access when
+     * SqueakConfig.LAZY_INSTALL is on. Everything that reads sqClass, pointers
+     * or bits of an object that may come from the image must go through here
+     * (the accessors below do).
+     */
+    final void ensureInstalled() {
+        if (uninstalled) {
+            SqueakVM.objectMemory.installLazily(this);
+        }
+    }
+
     //General access
     public SqueakObject getSqClass() {
+        ensureInstalled();
         return (SqueakObject) sqClass;
     }
 
     public Object getPointer(int zeroBasedIndex) {
+        ensureInstalled();
         return pointers[zeroBasedIndex];
     }
 
     public SqueakObject getPointerNI(int zeroBasedIndex) {
         //Returns only SqueakObjects, not Integers
+        ensureInstalled();
         return (SqueakObject) pointers[zeroBasedIndex];
     }
 
     public Integer getPointerI(int zeroBasedIndex) {
         //Returns only SmallIntegers
+        ensureInstalled();
         return (Integer) pointers[zeroBasedIndex];
     }
 
     public void setPointer(int zeroBasedIndex, Object aPointer) {
+        ensureInstalled();
         pointers[zeroBasedIndex] = aPointer;
+        dirty = true;
     }
 
     public int pointersSize() {
+        ensureInstalled();
         return pointers == null ? 0 : pointers.length;
     }
 
     public int bitsSize() {
+        ensureInstalled();
         if (bits == null) {
             return 0;
         }
-        if (bits instanceof byte[]) {
-            return ((byte[]) bits).length;
-        }
-        if (bits instanceof Double) {
-            return 2;
+        if (format >= 8) {
+            return ((byte[]) bits).length;  // bytes, and the bytecodes of CompiledMethods
         }
         return ((int[]) bits).length;
     }
@@ -147,9 +175,9 @@ public class SqueakObject {
             return 0;
         }
         if (format < 2) { //indexable fields only
-            return pointers.length;
+            return pointersSize();
         }
-        return ((SqueakObject) sqClass).classInstSize();  //0-255
+        return getSqClass().classInstSize();  //0-255
     }
 
     public int classInstSize() {
@@ -169,6 +197,7 @@ public class SqueakObject {
     }
 
     private void copyStateFrom(SqueakObject other) {
+        other.ensureInstalled();
         sqClass = other.sqClass;
         format = other.format;
         pointers = (Object[]) other.pointers.clone();
@@ -183,15 +212,6 @@ public class SqueakObject {
         }
     }
 
-    // isn't this slow?'
-    double getFloatBits() {
-        return (Double) bits;
-    }
-
-    void setFloatBits(double value) {
-        bits = value;
-    }
-
     //CompiledMethods
     public int methodHeader() {
         return (Integer) getPointer(0);
@@ -246,14 +266,9 @@ public class SqueakObject {
     }
 
     //Methods below here are only used for reading the Squeak image format
-    public void install(Hashtable<Object, Object> oopMap, Integer[] ccArray, SqueakObject floatClass) {
+    public void install(Map<Object, Object> oopMap, Integer[] ccArray) {
         //Install this object by decoding format, and rectifying pointers
-        int ccInt = (Integer) sqClass;
-        if ((ccInt > 0) && (ccInt < 32)) {
-            sqClass = oopMap.get(ccArray[ccInt - 1]);
-        } else {
-            sqClass = oopMap.get(sqClass);
-        }
+        installClass(oopMap, ccArray);
         int nWords = ((int[]) bits).length;
         if (format < 5) {
             //Formats 0...4 -- Pointer fields
@@ -269,32 +284,21 @@ public class SqueakObject {
             } else if (format >= 8) {
                 //Formats 8..11 -- ByteArrays (and Strings)
                 bits = decodeBytes(nWords, ((int[]) bits), 0, format & 3);
-            } else if (sqClass == floatClass) { //Format 6 word objects are already OK (except Floats...)
-                //Floats need two ints to be converted to double
-                /*
-                Caution !
-                Some integer value are negative, because int,long are signed value in Java,
-                so cast a int to long directly will cause error when calling Double.longBitsToDouble.
-                When dealing with lower bits, we must do << 32 then >>> 32,
-                using >>> (The unsigned right shift operator) to ignore negative flag.
-                Example :
-                1. lower bits: (int) bits[1] = 0xFFC0 0000
-                2. cast to long: 0xFFFF FFFF FFC0 0000 (a negative number)
-                3. << 32: 0xFFC0 0000 0000 0000
-                4. >>> 32: 0x0000 0000 FFC0 0000  (if >> 32: 0xFFFF FFFF FFC0 0000, still negative)
-                 */
-                int a1 = ((int[]) bits)[0];
-                int a2 = ((int[]) bits)[1];
-                long b1 = ((long) a1) << 32;
-                long b2 = ((long) a2 << 32) >>> 32; // important !!! MUST use unsigned right shift operator
-                long longBits = b1 | b2;
-
-                bits = Double.longBitsToDouble(longBits);
-            }
+            } //Format 6 word objects are already OK (Floats are SqueakFloats)
         }
+        uninstalled = false;
     }
 
-    private Object[] decodePointers(int nWords, int[] theBits, Hashtable<Object, Object> oopMap) {
+    final void installClass(Map<Object, Object> oopMap, Integer[] ccArray) {
+        int ccInt = (Integer) sqClass;
+        if ((ccInt > 0) && (ccInt < 32)) {
+            sqClass = oopMap.get(ccArray[ccInt - 1]);
+        } else {
+            sqClass = oopMap.get(sqClass);
+        }
+    }
+
+    private Object[] decodePointers(int nWords, int[] theBits, Map<Object, Object> oopMap) {
         //Convert small ints and look up object pointers in oopMap
         Object[] ptrs = new Object[nWords];
         for (int i = 0; i < nWords; i++) {
@@ -333,6 +337,7 @@ public class SqueakObject {
 
     public String asString() {
         // debugging only: if body consists of bytes, make a Java String from them
+        ensureInstalled();
         if (bits != null && bits instanceof byte[]) {
             if (pointers != null) {
                 return "a CompiledMethod";
@@ -361,18 +366,15 @@ public class SqueakObject {
      * FIXME: what is the right way to achieve this?
      */
     void setByte(int zeroBasedIndex, byte value) {
-        byte[] bytes = (byte[]) bits;
-
-        bytes[zeroBasedIndex] = value;
+        getBytes()[zeroBasedIndex] = value;
+        dirty = true;
     }
 
     /**
      * FIXME: what is the right way to achieve this?
      */
     byte getByte(int zeroBasedIndex) {
-        byte[] bytes = (byte[]) bits;
-
-        return bytes[zeroBasedIndex];
+        return getBytes()[zeroBasedIndex];
     }
 
     public short getHash() {
@@ -384,13 +386,31 @@ public class SqueakObject {
     }
 
     public Object[] getPointers() {
+        ensureInstalled();
         return pointers;
     }
 
     public Object getBits() {
+        ensureInstalled();
         return bits;
     }
 
+    /**
+     * The bits of a byte object or CompiledMethod (format 8 and up).
+     */
+    public byte[] getBytes() {
+        ensureInstalled();
+        return (byte[]) bits;
+    }
+
+    /**
+     * The bits of a word object (format 6).
+     */
+    public int[] getWords() {
+        ensureInstalled();
+        return (int[]) bits;
+    }
+
     // ------ static method ------
 
     public static SqueakObject createSTString(String jString) {
@@ -30,7 +30,6 @@ import org.jsqueak.display.Screen;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -504,6 +503,8 @@ public class SqueakPrimitiveHandler {
             case 96:
                 if (argCount == 0) return primitiveCopyBits((SqueakObject) vm.top(), 0);
                 else return primitiveCopyBits((SqueakObject) vm.stackValue(1), 1);
+            case 97:
+                return primitiveSnapshot(argCount); // SystemDictionary.snapshotPrimitive
             case 100:
                 return vm.primitivePerformInSuperclass((SqueakObject) vm.top()); // rcvr.perform:withArguments:InSuperclass
             case 101:
@@ -511,7 +512,9 @@ public class SqueakPrimitiveHandler {
             case 102:
                 return beDisplay(argCount); // DisplayScreen.beDisplay
             case 103:
-                return primitiveScanCharacters();
+                return popNandPushIfOK(7, primitiveScanCharacters(argCount)); // CharacterScanner scanCharactersFrom:...
+            case 104:
+                return primitiveDrawLoop(argCount); // BitBlt drawLoopX:Y:
             case 105:
                 return popNandPushIfOK(5, primitiveStringReplace()); // string and array replace
             case 106:
@@ -541,6 +544,7 @@ public class SqueakPrimitiveHandler {
             case 112:
                 return popNandPushIfOK(1, InterpreterHelper.smallFromInt(SqueakVM.objectMemory.spaceLeft())); // bytesLeft
             case 113: {
+                SqueakVM.image.awaitSnapshot();  // a "save and quit" may still be writing the image
                 System.exit(0);
                 return true;
             }
@@ -823,14 +827,53 @@ public class SqueakPrimitiveHandler {
      * <primitive: 97>
      * ^nil "indicates error writing image file"
      */
-    private void primitiveSnapshot() {
+    private boolean primitiveSnapshot(int argCount) {
+        // An optional Semaphore argument is signalled once the image is written
+        SqueakObject sema = SqueakVM.nilObj;
+        if (argCount == 1) {
+            if (!isA(vm.top(), Squeak.splOb_ClassSemaphore)) {
+                return false;
+            }
+            sema = (SqueakObject) vm.top();
+        } else if (argCount != 0) {
+            return false;
+        }
         System.out.println("Saving the image");
+        // The saved image resumes in the active context with true on the stack, this one continues with false
+        SqueakObject activeProc = getScheduler().getPointerNI(Squeak.ProcSched_activeProcess);
+        Object rcvr = vm.stackValue(argCount);
+        vm.popNandPush(argCount + 1, SqueakVM.trueObj);
+        vm.storeContextRegisters();
+        activeProc.setPointer(Squeak.Proc_suspendedContext, vm.activeContext);
+        boolean saved = false;
+        boolean signalNow = true;
         try {
-            SqueakVM.image.save(new File("/tmp/image.gz"));
+            if (SqueakConfig.Snapshot.DELTAS && SqueakVM.image.saveDelta()) {
+                saved = true;
+            } else if (SqueakConfig.Snapshot.BACKGROUND) {
+                final SqueakObject doneSema = sema;
+                saved = SqueakVM.image.saveInBackground(SqueakVM.image.imageFile(), () -> vm.snapshotWritten(doneSema));
+                signalNow = false;
+            } else {
+                SqueakVM.image.save(SqueakVM.image.imageFile());
+                saved = true;
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-            this.success = false;
+            SqueakLogger.log_E("Cannot save the image: " + e);
+        }
+        if (saved && signalNow && sema != SqueakVM.nilObj) {
+            synchronousSignal(sema);
+        }
+        activeProc.setPointer(Squeak.Proc_suspendedContext, SqueakVM.nilObj);
+        if (!saved) {
+            vm.popNandPush(1, rcvr);  // restore the stack for the primitive failure
+            if (argCount == 1) {
+                vm.push(sema);
+            }
+            return false;
         }
+        vm.popNandPush(1, SqueakVM.falseObj);
+        return true;
     }
 
     /**
@@ -920,8 +963,8 @@ public class SqueakPrimitiveHandler {
      * If maybeFloat is a Squeak Float return its value, fail otherwise
      */
     private double checkFloat(Object maybeFloat) {
-        if (vm.getClass(maybeFloat) == SqueakVM.specialObjects[Squeak.splOb_ClassFloat]) {
-            return ((SqueakObject) maybeFloat).getFloatBits();
+        if (maybeFloat instanceof SqueakFloat) {
+            return ((SqueakFloat) maybeFloat).getFloatBits();
         }
 
         // FIXME is it ok to treat integer as float ? see SqueakJS <checkFloat> at vm.primitives.js
@@ -977,7 +1020,7 @@ public class SqueakPrimitiveHandler {
         }
 
 
-        byte[] bytes = (byte[]) ((SqueakObject) stackVal).bits;
+        byte[] bytes = ((SqueakObject) stackVal).getBytes();
         int value = 0;
         for (int i = 0; i < 4; i++) {
             value = value + ((bytes[i] & 255) << (8 * i));
@@ -1062,8 +1105,8 @@ public class SqueakPrimitiveHandler {
 
     private SqueakObject makeFloat(double value) {
         SqueakObject floatClass = (SqueakObject) SqueakVM.specialObjects[Squeak.splOb_ClassFloat];
-        SqueakObject newFloat = vm.instantiateClass(floatClass, -1);
-        newFloat.setFloatBits(value);
+        SqueakFloat newFloat = new SqueakFloat(SqueakVM.image, floatClass);
+        newFloat.value = value;
         return newFloat;
     }
 
@@ -1169,14 +1212,10 @@ public class SqueakPrimitiveHandler {
 
         } else {
             // slow entry installs in cache if appropriate
-            if (array.format == 6 && isA(array, Squeak.splOb_ClassFloat)) {
+            if (array instanceof SqueakFloat) {
                 // hack to make Float hash work
-                long floatBits = Double.doubleToRawLongBits(array.getFloatBits());
-                if (index == 1) {
-                    return pos32BitIntFor((int) (floatBits >>> 32));
-                }
-                if (index == 2) {
-                    return pos32BitIntFor((int) (floatBits & 0xFFFFFFFF));
+                if (index == 1 || index == 2) {
+                    return pos32BitIntFor(((SqueakFloat) array).getFloatWord(index));
                 }
 
                 this.success = false;
@@ -1191,17 +1230,17 @@ public class SqueakPrimitiveHandler {
 
 
         if (includeInstVars) { //pointers...   instVarAt and objectAt
-            return array.pointers[index - 1];
+            return array.getPointers()[index - 1];
         }
         if (array.format < 6) {  //pointers...   normal at:
-            return array.pointers[index - 1 + info.ivarOffset];
+            return array.getPointers()[index - 1 + info.ivarOffset];
         }
         if (array.format < 8) {  // words...
-            int value = ((int[]) array.bits)[index - 1];
+            int value = array.getWords()[index - 1];
             return pos32BitIntFor(value);
         }
         if (array.format < 12) { // bytes...
-            int value = (((byte[]) array.bits)[index - 1]) & 0xFF;
+            int value = (array.getBytes()[index - 1]) & 0xFF;
             if (info.convertChars) {
                 return charFromInt(value);
             } else {
@@ -1215,7 +1254,7 @@ public class SqueakPrimitiveHandler {
             return array;
         }
 
-        return InterpreterHelper.smallFromInt((((byte[]) array.bits)[index - 1 - offset]) & 0xFF);
+        return InterpreterHelper.smallFromInt((array.getBytes()[index - 1 - offset]) & 0xFF);
     }
 
     SqueakObject charFromInt(int ascii) {
@@ -1242,6 +1281,16 @@ public class SqueakPrimitiveHandler {
                 return array;
             }
         } else {
+            if (array instanceof SqueakFloat) {
+                // the words of a Float are those of its value
+                int wordToPut = stackPos32BitValue(0);
+                if (!success || (index != 1 && index != 2)) {
+                    this.success = false;
+                    return array;
+                }
+                ((SqueakFloat) array).setFloatWord(index, wordToPut);
+                return vm.stackValue(0);
+            }
             // slow entry installs in cache if appropriate
             info = makeCacheInfo(atPutCache, SqueakVM.specialSelectors[34], array, convertChars, includeInstVars);
         }
@@ -1251,14 +1300,15 @@ public class SqueakPrimitiveHandler {
         }
 
         Object objToPut = vm.stackValue(0);
+        array.dirty = true;  //the stores below go straight into the body
         if (includeInstVars) {
             // pointers...   instVarAtPut and objectAtPut
-            array.pointers[index - 1] = objToPut; //eg, objectAt:
+            array.getPointers()[index - 1] = objToPut; //eg, objectAt:
             return objToPut;
         }
         if (array.format < 6) {
             // pointers...   normal atPut
-            array.pointers[index - 1 + info.ivarOffset] = objToPut;
+            array.getPointers()[index - 1 + info.ivarOffset] = objToPut;
             return objToPut;
         }
         int intToPut;
@@ -1269,7 +1319,7 @@ public class SqueakPrimitiveHandler {
                 return objToPut;
             }
 
-            ((int[]) array.bits)[index - 1] = intToPut;
+            array.getWords()[index - 1] = intToPut;
             return objToPut;
         }
         // bytes...
@@ -1281,7 +1331,7 @@ public class SqueakPrimitiveHandler {
             }
 
             SqueakObject sqObjToPut = (SqueakObject) objToPut;
-            if ((sqObjToPut.sqClass != SqueakVM.specialObjects[Squeak.splOb_ClassCharacter])) {
+            if ((sqObjToPut.getSqClass() != SqueakVM.specialObjects[Squeak.splOb_ClassCharacter])) {
                 this.success = false;
                 return objToPut;
             }
@@ -1309,7 +1359,7 @@ public class SqueakPrimitiveHandler {
 
         if (array.format < 8) {
             // bytes...
-            ((byte[]) array.bits)[index - 1] = (byte) intToPut;
+            array.getBytes()[index - 1] = (byte) intToPut;
             return objToPut;
         }
         // methods (format>=12) must simulate Squeak's method indexing
@@ -1319,7 +1369,7 @@ public class SqueakPrimitiveHandler {
             return array;
         }
 
-        ((byte[]) array.bits)[index - 1 - offset] = (byte) intToPut;
+        array.getBytes()[index - 1 - offset] = (byte) intToPut;
         return objToPut;
     }
 
@@ -1388,7 +1438,8 @@ public class SqueakPrimitiveHandler {
                 return SqueakVM.nilObj;
             }
 
-            System.arraycopy(src.pointers, srcPos, dst.pointers, dstPos, count);
+            System.arraycopy(src.getPointers(), srcPos, dst.getPointers(), dstPos, count);
+            dst.dirty = true;
             return dst;
         } else {
             //bits type objects
@@ -1404,7 +1455,8 @@ public class SqueakPrimitiveHandler {
                 this.success = false;
                 return SqueakVM.nilObj;
             }
-            System.arraycopy(src.bits, srcPos, dst.bits, dstPos, count);
+            System.arraycopy(src.getBits(), srcPos, dst.getBits(), dstPos, count);
+            dst.dirty = true;
             return dst;
         }
     }
@@ -1418,7 +1470,7 @@ public class SqueakPrimitiveHandler {
         if (!success) {
             return false;
         }
-        Object[] streamBody = stream.pointers;
+        Object[] streamBody = stream.getPointers();
         if (streamBody == null || streamBody.length < (Squeak.Stream_limit + 1)) {
             return false;
         }
@@ -1497,7 +1549,7 @@ public class SqueakPrimitiveHandler {
         if (block.getPointer(Squeak.BlockContext_caller) != SqueakVM.nilObj) {
             return false;
         }
-        System.arraycopy((Object) vm.activeContext.pointers, vm.sp - argCount + 1, (Object) block.pointers, Squeak.Context_tempFrameStart, argCount);
+        System.arraycopy((Object) vm.activeContext.pointers, vm.sp - argCount + 1, (Object) block.getPointers(), Squeak.Context_tempFrameStart, argCount);
         Integer initialIP = block.getPointerI(Squeak.BlockContext_initialIP);
         block.setPointer(Squeak.Context_instructionPointer, initialIP);
         block.setPointer(Squeak.Context_stackPointer, argCount);
@@ -1560,7 +1612,7 @@ public class SqueakPrimitiveHandler {
             if (classOrSuper == theClass) {
                 return true;
             }
-            classOrSuper = ((SqueakObject) classOrSuper).pointers[Squeak.Class_superclass];
+            classOrSuper = ((SqueakObject) classOrSuper).getPointer(Squeak.Class_superclass);
         }
         return false;
     }
@@ -1766,7 +1818,7 @@ public class SqueakPrimitiveHandler {
             theDisplay.getFrame().addWindowListener(new WindowAdapter() {
                                                         public void windowClosing(WindowEvent evt) {
                                                             // TODO ask before shutdown
-                                                            // FIXME at least lock out quitting until concurrent image save has finished
+                                                            // exit() waits for a snapshot still being written in the background
                                                             theDisplay.exit();
                                                         }
                                                     }
@@ -1774,9 +1826,13 @@ public class SqueakPrimitiveHandler {
         }
 
 
-        displayBitmapFromOrg = new int[displayBitmap.length];
-        copyBitmapIntToInt(displayBitmap, displayBitmapFromOrg,
-                new Rectangle(0, 0, disp.width, disp.height), disp.pitch, disp.depth);
+        if (SqueakConfig.Display.SHARE_BITMAP) {
+            displayBitmapFromOrg = displayBitmap;  // nothing to copy, the screen shows the Display bits
+        } else {
+            displayBitmapFromOrg = new int[displayBitmap.length];
+            copyBitmapIntToInt(displayBitmap, displayBitmapFromOrg,
+                    new Rectangle(0, 0, disp.width, disp.height), disp.pitch, disp.depth);
+        }
 
 
         theDisplay.setBitsV2(displayBitmapFromOrg, disp.depth);
@@ -1820,8 +1876,8 @@ public class SqueakPrimitiveHandler {
         if (!isA(offsetObj, Squeak.splOb_ClassPoint)) {
             return false;
         }
-        int offsetX = checkSmallInt(offsetObj.pointers[0]);
-        int offsetY = checkSmallInt(offsetObj.pointers[1]);
+        int offsetX = checkSmallInt(offsetObj.getPointer(0));
+        int offsetY = checkSmallInt(offsetObj.getPointer(1));
         if (!success) {
             return false;
         }
@@ -1875,10 +1931,8 @@ public class SqueakPrimitiveHandler {
         }
 
         Rectangle affectedArea = bitbltTable.copyBits();
-        if (affectedArea != null && theDisplay != null) {
-            copyBitmapIntToInt(displayBitmap, displayBitmapFromOrg, affectedArea,
-                    bitbltTable.dest.pitch, bitbltTable.dest.depth);
-            theDisplay.redisplay(false, affectedArea);
+        if (affectedArea != null) {
+            showAffectedArea(affectedArea);
         }
         if (bitbltTable.combinationRule == 22 || bitbltTable.combinationRule == 32) {
             vm.popNandPush(2, InterpreterHelper.smallFromInt(bitbltTable.bitCount));
@@ -1886,6 +1940,20 @@ public class SqueakPrimitiveHandler {
         return true;
     }
 
+    /**
+     * Show on the screen an area of the display that BitBlt has drawn into.
+     */
+    private void showAffectedArea(Rectangle affectedArea) {
+        if (theDisplay == null) {
+            return;
+        }
+        if (displayBitmapFromOrg != displayBitmap) {
+            copyBitmapIntToInt(displayBitmap, displayBitmapFromOrg, affectedArea,
+                    bitbltTable.dest.pitch, bitbltTable.dest.depth);
+        }
+        theDisplay.redisplay(false, affectedArea);
+    }
+
     // FIXME (copyBitmapToByteArray)
     private void copyBitmapToByteArray(int[] words, byte[] bytes, Rectangle rect, int raster, int depth) {
         //Copy our 32-bit words into a byte array  until we find out
@@ -1931,11 +1999,26 @@ public class SqueakPrimitiveHandler {
 
 
     /**
-     * direct copy bitblt bitmap to int buffer
+     * direct copy bitblt bitmap to int buffer, only the words covering rect
      */
     private void copyBitmapIntToInt(int[] words, int[] bitmapData, Rectangle rect, int raster, int depth) {
-        for (int i = 0; i < words.length; i++) {
-            bitmapData[i] = words[i];
+        int pixPerWord = 32 / depth;
+        int top = Math.max(rect.y, 0);
+        int bottom = Math.min(rect.y + rect.height, words.length / raster);
+        int firstWord = Math.max(rect.x, 0) / pixPerWord;
+        int lastWord = Math.min((rect.x + rect.width + pixPerWord - 1) / pixPerWord, raster);
+        int wordsPerRow = lastWord - firstWord;
+        if (wordsPerRow <= 0 || bottom <= top) {
+            return;
+        }
+        if (wordsPerRow == raster) {
+            // whole rows are contiguous
+            System.arraycopy(words, top * raster, bitmapData, top * raster, (bottom - top) * raster);
+            return;
+        }
+        for (int y = top; y < bottom; y++) {
+            int rowStart = y * raster + firstWord;
+            System.arraycopy(words, rowStart, bitmapData, rowStart, wordsPerRow);
         }
     }
 
@@ -1965,13 +2048,17 @@ public class SqueakPrimitiveHandler {
     }
 
     private SqueakObject primitiveArrayBecome(boolean doBothWays) {
-        // Should flush method cache
         SqueakObject rcvr = stackNonInteger(1);
         SqueakObject arg = stackNonInteger(0);
         if (!success) {
             return rcvr;
         }
-        success = SqueakVM.objectMemory.bulkBecome(rcvr.pointers, arg.pointers, doBothWays);
+        success = SqueakVM.objectMemory.bulkBecome(rcvr.getPointers(), arg.getPointers(), doBothWays);
+        if (success) {
+            // cached sizes and lookups may belong to an object that is something else now
+            clearAtCache();
+            vm.clearMethodCache();
+        }
         return rcvr;
     }
 
@@ -1980,7 +2067,7 @@ public class SqueakPrimitiveHandler {
     }
 
     private SqueakObject primitiveSomeInstance(SqueakObject sqClass) {
-        return SqueakVM.objectMemory.nextInstance(0, sqClass);
+        return SqueakVM.objectMemory.someInstance(sqClass);
     }
 
     private Object primitiveNextObject(SqueakObject priorObject) {
@@ -1992,8 +2079,7 @@ public class SqueakPrimitiveHandler {
     }
 
     private SqueakObject primitiveNextInstance(SqueakObject priorInstance) {
-        SqueakObject sqClass = (SqueakObject) priorInstance.sqClass;
-        return SqueakVM.objectMemory.nextInstance(SqueakVM.objectMemory.otIndexOfObject(priorInstance) + 1, sqClass);
+        return SqueakVM.objectMemory.instanceAfter(priorInstance);
     }
 
     //  region more-primitive-for-squeak
@@ -2026,8 +2112,52 @@ public class SqueakPrimitiveHandler {
         return popNandPushIfOK(1, makePointWithXandY(InterpreterHelper.smallFromInt(width), InterpreterHelper.smallFromInt(height))); // actualScreenSize
     }
 
-    private boolean primitiveScanCharacters() {
-        return false;
+    private Object primitiveScanCharacters(int argCount) {
+        if (argCount != 6) {
+            return null;
+        }
+        SqueakObject scanner = stackNonInteger(6);
+        int start = stackInteger(5);
+        int stop = stackInteger(4);
+        SqueakObject string = stackNonInteger(3);
+        int rightX = stackInteger(2);
+        SqueakObject stops = stackNonInteger(1);
+        Object display = vm.stackValue(0);
+        if (!success || (display != SqueakVM.trueObj && display != SqueakVM.falseObj)) {
+            return null;
+        }
+        if (!(string.getBits() instanceof byte[]) || !InterpreterHelper.isPointers(stops) || stops.getPointers() == null) {
+            return null;
+        }
+        Rectangle affectedArea = new Rectangle(0, 0, -1, -1);
+        Object stopReason = bitbltTable.scanCharacters(scanner, start, stop, (byte[]) string.getBits(), rightX,
+                stops.getPointers(), display == SqueakVM.trueObj,
+                (SqueakObject) SqueakVM.specialObjects[Squeak.splOb_TheDisplay], affectedArea);
+        if (stopReason != null && !affectedArea.isEmpty()) {
+            showAffectedArea(affectedArea);
+        }
+        return stopReason;
+    }
+
+    private boolean primitiveDrawLoop(int argCount) {
+        if (argCount != 2) {
+            return false;
+        }
+        SqueakObject rcvr = stackNonInteger(2);
+        int xDelta = stackInteger(1);
+        int yDelta = stackInteger(0);
+        if (!success || !bitbltTable.loadBitBlt(rcvr, 0, false, (SqueakObject) SqueakVM.specialObjects[Squeak.splOb_TheDisplay])) {
+            return false;
+        }
+        Rectangle affectedArea = new Rectangle(0, 0, -1, -1);
+        if (!bitbltTable.drawLoop(rcvr, xDelta, yDelta, affectedArea)) {
+            return false;
+        }
+        if (!affectedArea.isEmpty()) {
+            showAffectedArea(affectedArea);
+        }
+        vm.popN(2);  // answer the receiver
+        return true;
     }
 
     private void primitiveDebug() {
@@ -2138,7 +2268,7 @@ public class SqueakPrimitiveHandler {
         }
 
         if (rcvr instanceof SqueakObject) {
-            Object[] objarray = ((SqueakObject) rcvr).pointers;
+            Object[] objarray = ((SqueakObject) rcvr).getPointers();
             if (objarray != null) {
                 for (Object obj : objarray) {
                     if (obj == thang) {
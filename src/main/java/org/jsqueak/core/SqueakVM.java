@@ -90,6 +90,7 @@ public class SqueakVM {
     private int semaphoresToSignalCountB;
     private boolean deferDisplayUpdates;
     private int pendingFinalizationSignals;
+    private volatile SqueakObject pendingSnapshotSignal; //set by the snapshot writer thread, see snapshotWritten
 
     // Component of VM
     public final ClipboardManager clipboardManager = new ClipboardManager();
@@ -143,12 +144,12 @@ public class SqueakVM {
 
     private void loadImageState() {
         SqueakObject specialObjectsArray = image.specialObjectsArray;
-        specialObjects = specialObjectsArray.pointers;
+        specialObjects = specialObjectsArray.getPointers();
         nilObj = getSpecialObject(Squeak.splOb_NilObject);
         falseObj = getSpecialObject(Squeak.splOb_FalseObject);
         trueObj = getSpecialObject(Squeak.splOb_TrueObject);
         SqueakObject ssObj = getSpecialObject(Squeak.splOb_SpecialSelectors);
-        specialSelectors = ssObj.pointers;
+        specialSelectors = ssObj.getPointers();
     }
 
     public SqueakObject getSpecialObject(int zeroBasedIndex) {
@@ -214,7 +215,7 @@ public class SqueakVM {
         }
         receiver = homeContext.getPointer(Squeak.Context_receiver);
         method = (SqueakObject) meth;
-        methodBytes = (byte[]) method.bits;
+        methodBytes = method.getBytes();
         pc = decodeSqueakPC(ctxt.getPointerI(Squeak.Context_instructionPointer), method);
         if (pc < -1)
             dumpStack();
@@ -264,19 +265,21 @@ public class SqueakVM {
     // STACKFRAME ACCESS:
     public boolean isContext(SqueakObject obj) {
         //either block or methodContext
-        if (obj.sqClass == specialObjects[Squeak.splOb_ClassMethodContext])
+        if (obj.getSqClass() == specialObjects[Squeak.splOb_ClassMethodContext])
             return true;
-        if (obj.sqClass == specialObjects[Squeak.splOb_ClassBlockContext])
+        if (obj.getSqClass() == specialObjects[Squeak.splOb_ClassBlockContext])
             return true;
         return false;
     }
 
     public boolean isMethodContext(SqueakObject obj) {
-        if (obj.sqClass == specialObjects[Squeak.splOb_ClassMethodContext])
+        if (obj.getSqClass() == specialObjects[Squeak.splOb_ClassMethodContext])
             return true;
         return false;
     }
 
+    // activeContext is always installed by fetchContextRegisters (or freshly allocated),
+    // so the stack operations below may access its pointers directly
     public Object pop() {
         //Note leaves garbage above SP.  Serious reclaim should store nils above SP
         return activeContext.pointers[sp--];
@@ -372,6 +375,13 @@ public class SqueakVM {
                 primHandler.synchronousSignal(sema);
             }
         }
+        SqueakObject snapshotSema = pendingSnapshotSignal;
+        if (snapshotSema != null) {
+            pendingSnapshotSignal = null;
+            if (snapshotSema != nilObj) {
+                primHandler.synchronousSignal(snapshotSema);
+            }
+        }
         //  if (pendingFinalizationSignals > 0) { //signal any pending finalizations
         //            sema= getSpecialObject(Squeak.splOb_ThefinalizationSemaphore);
         //            pendingFinalizationSignals= 0;
@@ -380,6 +390,14 @@ public class SqueakVM {
         //            signalExternalSemaphores(); }  //signal all semaphores in semaphoresToSignal
     }
 
+    /**
+     * Called by the snapshot writer thread once a background snapshot is written;
+     * sema (or nil) is signalled by the interpreter at its next interrupt check.
+     */
+    void snapshotWritten(SqueakObject sema) {
+        pendingSnapshotSignal = sema;
+    }
+
     public void jumpif(boolean condition, int delta) {
         Object top = pop();
         if (top == (condition ? trueObj : falseObj)) {
@@ -730,7 +748,7 @@ public class SqueakVM {
         //      Following are more efficient than fetchContextRegisters in newActiveContext:
         homeContext = newContext;
         method = newMethod;
-        methodBytes = (byte[]) method.bits;
+        methodBytes = method.getBytes();
         pc = newPC;
         sp = newSP;
         storeContextRegisters(); // not really necessary, I claim
@@ -814,11 +832,12 @@ public class SqueakVM {
             return false;
         }
         SqueakObject args = (SqueakObject) stackValue(0);
-        if (args.pointers == null) {
+        Object[] argPointers = args.getPointers();
+        if (argPointers == null) {
             return false;
         }
-        int trueArgCount = args.pointers.length;
-        System.arraycopy(args.pointers, 0, activeContext.pointers, sp - 1, trueArgCount);
+        int trueArgCount = argPointers.length;
+        System.arraycopy(argPointers, 0, activeContext.pointers, sp - 1, trueArgCount);
         sp = sp - 2 + trueArgCount; //pop selector and array then push args
         MethodCacheEntry entry = findSelectorInClass(selector, trueArgCount, lookupClass);
         SqueakObject newMethod = entry.method;
@@ -833,7 +852,7 @@ public class SqueakVM {
         //verify that lookupClass is actually in reciver's inheritance
         SqueakObject currentClass = getClass(stackValue(3));
         while (currentClass != lookupClass) {
-            currentClass = (SqueakObject) currentClass.pointers[Squeak.Class_superclass];
+            currentClass = currentClass.getPointerNI(Squeak.Class_superclass);
             if (currentClass == nilObj) {
                 return false;
             }
@@ -899,6 +918,9 @@ public class SqueakVM {
 
     // FIXME: remove this method
     public SqueakObject instantiateClass(SqueakObject theClass, int indexableSize) {
+        if (theClass == specialObjects[Squeak.splOb_ClassFloat]) {
+            return new SqueakFloat(image, theClass);  // every Float must be a SqueakFloat
+        }
         return new SqueakObject(image, theClass, indexableSize, nilObj);
     }
 
@@ -976,7 +998,7 @@ public class SqueakVM {
         System.err.println();
         System.err.println(byteCount + " rcvr= " + printString(receiver));
         System.err.println("depth= " + stackDepth() + "; top= " + printString(top()));
-        System.err.println("pc= " + pc + "; sp= " + sp + "; nextByte= " + (((byte[]) method.bits)[pc + 1] & 0xff));
+        System.err.println("pc= " + pc + "; sp= " + sp + "; nextByte= " + (method.getBytes()[pc + 1] & 0xff));
         // if (byteCount==1764)
         //    byteCount= byteCount;  // <-- break here
     }
@@ -1019,6 +1041,8 @@ public class SqueakVM {
     }
 
     public static class FormCache {
+        private final static int RecentForms = 4;  // forms remembered besides the current one
+
         SqueakObject squeakForm;
         int[] bits;
         int width;
@@ -1028,6 +1052,16 @@ public class SqueakVM {
         int pixPerWord;
         int pitch; // aka raster
 
+        // what the form held when it was decoded, to see that it has not changed since
+        private Object[] formPointers;
+        private Object bitsObject;
+        private Object widthObject;
+        private Object heightObject;
+        private Object depthObject;
+
+        private FormCache[] recent;
+        private int nextRecent;
+
         FormCache() {
         }
 
@@ -1036,15 +1070,67 @@ public class SqueakVM {
         }
 
         boolean loadFrom(Object aForm) {
-            //We do not reload if this is the same form as before
-            if (squeakForm == aForm) {
+            //We do not decode again a form decoded before, unless its fields or bits changed since
+            if (squeakForm == aForm && isCurrent()) {
                 return true;
             }
+            if (recent != null) {
+                for (FormCache known : recent) {
+                    if (known != null && known.squeakForm == aForm && known.isCurrent()) {
+                        copyFrom(known);
+                        return true;
+                    }
+                }
+            }
+            if (!decode(aForm)) {
+                return false;
+            }
+            if (recent == null) {
+                recent = new FormCache[RecentForms];
+            }
+            FormCache known = new FormCache();
+            known.copyFrom(this);
+            recent[nextRecent] = known;
+            nextRecent = (nextRecent + 1) % RecentForms;
+            return true;
+        }
+
+        /**
+         * @return true if the form still holds the same pointers and bits as when it was decoded;
+         * fields are compared by identity, so an equal but new Integer only costs decoding again
+         */
+        private boolean isCurrent() {
+            Object[] pointers = squeakForm.getPointers();
+            return pointers == formPointers
+                    && pointers[0] == bitsObject
+                    && pointers[1] == widthObject
+                    && pointers[2] == heightObject
+                    && pointers[3] == depthObject
+                    && ((SqueakObject) bitsObject).getBits() == bits;
+        }
+
+        private void copyFrom(FormCache other) {
+            squeakForm = other.squeakForm;
+            bits = other.bits;
+            width = other.width;
+            height = other.height;
+            depth = other.depth;
+            msb = other.msb;
+            pixPerWord = other.pixPerWord;
+            pitch = other.pitch;
+            formPointers = other.formPointers;
+            bitsObject = other.bitsObject;
+            widthObject = other.widthObject;
+            heightObject = other.heightObject;
+            depthObject = other.depthObject;
+        }
+
+        private boolean decode(Object aForm) {
             squeakForm = null; //Marks this as failed until very end...
             if (InterpreterHelper.isSTInteger(aForm)) {
                 return false;
             }
-            Object[] formPointers = ((SqueakObject) aForm).pointers;
+            Object[] formPointers = ((SqueakObject) aForm).getPointers();
             if (formPointers == null || formPointers.length < 4) {
                 return false;
             }
@@ -1067,7 +1153,7 @@ public class SqueakVM {
             if (depth < 0) {
                 depth = 0 - depth;
             }
-            Object maybeBytes = ((SqueakObject) bitsObject).bits;
+            Object maybeBytes = ((SqueakObject) bitsObject).getBits();
             if (maybeBytes == null || maybeBytes instanceof byte[]) {
                 return false;  //Happens with compressed bits
             }
@@ -1077,6 +1163,11 @@ public class SqueakVM {
             if (bits.length != (pitch * height)) {
                 return false;
             }
+            this.formPointers = formPointers;
+            this.bitsObject = bitsObject;
+            widthObject = formPointers[1];
+            heightObject = formPointers[2];
+            depthObject = formPointers[3];
             squeakForm = (SqueakObject) aForm; //Only now is it marked as OK
             return true;
         }
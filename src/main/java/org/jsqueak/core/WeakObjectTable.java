@@ -0,0 +1,127 @@
+package org.jsqueak.core;
+
+import org.jsqueak.uilts.SqueakLogger;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * The object table of ObjectMemory: weak references to all objects, in order of creation.
+ * <p>
+ * The references are kept in fixed size chunks, so growing the table never copies it, and
+ * compaction squeezes out the cleared references in a single pass in place, without allocating.
+ * Every reference is registered with the queue given at creation, which tells the owner how
+ * many slots are cleared without scanning.
+ * <p>
+ * Compaction keeps {@link SqueakObject#otIndex} of each moved object current, so an object's
+ * slot is found without a search.
+ */
+class WeakObjectTable {
+
+    private final static int ChunkShift = 14;
+    private final static int ChunkSize = 1 << ChunkShift;  // references per chunk
+    private final static int ChunkMask = ChunkSize - 1;
+
+    private final ReferenceQueue<Object> queue;
+    private WeakReference<Object>[][] chunks;
+    private int chunkCount;  // chunks allocated
+    private int size;
+
+    // Timing of compact()
+    private int compactions;
+    private long totalCompactNanos;
+    private long lastCompactNanos;
+
+    @SuppressWarnings("unchecked")
+    WeakObjectTable(int initialCapacity, ReferenceQueue<Object> queue) {
+        this.queue = queue;
+        chunks = (WeakReference<Object>[][]) new WeakReference<?>[(initialCapacity >> ChunkShift) + 1][];
+    }
+
+    int size() {
+        return size;
+    }
+
+    WeakReference<Object> get(int index) {
+        return chunks[index >> ChunkShift][index & ChunkMask];
+    }
+
+    /**
+     * The object at index, or null if it has been collected.
+     */
+    Object objectAt(int index) {
+        return get(index).get();
+    }
+
+    /**
+     * Append a reference to obj.
+     *
+     * @return the new reference
+     */
+    @SuppressWarnings("unchecked")
+    WeakReference<Object> add(SqueakObject obj) {
+        int chunk = size >> ChunkShift;
+        if (chunk == chunkCount) {
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            }
+            chunks[chunk] = (WeakReference<Object>[]) new WeakReference<?>[ChunkSize];
+            chunkCount++;
+        }
+        WeakReference<Object> ref = new WeakReference<>(obj, queue);
+        chunks[chunk][size & ChunkMask] = ref;
+        size++;
+        return ref;
+    }
+
+    /**
+     * Remove the cleared references, retaining the order of the others.
+     *
+     * @return the number of references removed
+     */
+    int compact() {
+        long start = System.nanoTime();
+        int writePtr = 0;
+        for (int readPtr = 0; readPtr < size; readPtr++) {
+            WeakReference<Object> slot = chunks[readPtr >> ChunkShift][readPtr & ChunkMask];
+            Object obj = slot.get();
+            if (obj != null) {
+                if (writePtr != readPtr) {
+                    chunks[writePtr >> ChunkShift][writePtr & ChunkMask] = slot;
+                    ((SqueakObject) obj).otIndex = writePtr;
+                }
+                writePtr++;
+            }
+        }
+        int removed = size - writePtr;
+        for (int i = writePtr; i < size; i++) {
+            chunks[i >> ChunkShift][i & ChunkMask] = null;  // let the cleared references go
+        }
+        size = writePtr;
+        // keep one spare chunk, so that a table around a chunk boundary doesn't allocate again and again
+        int chunksNeeded = (size >> ChunkShift) + 2;
+        while (chunkCount > chunksNeeded) {
+            chunks[--chunkCount] = null;
+        }
+
+        lastCompactNanos = System.nanoTime() - start;
+        totalCompactNanos += lastCompactNanos;
+        compactions++;
+        SqueakLogger.log_D("Object table compacted: " + removed + " slots reclaimed, " + size + " in use, "
+                + (lastCompactNanos / 1000) + " us");
+        return removed;
+    }
+
+    int getCompactions() {
+        return compactions;
+    }
+
+    long getLastCompactNanos() {
+        return lastCompactNanos;
+    }
+
+    long getTotalCompactNanos() {
+        return totalCompactNanos;
+    }
+}
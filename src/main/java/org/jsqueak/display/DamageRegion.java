@@ -0,0 +1,81 @@
+package org.jsqueak.display;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+
+/**
+ * The areas of the screen changed since the last repaint, kept as a few rectangles.
+ * <p>
+ * The interpreter adds the area of each drawing onto the display, the event dispatch thread
+ * takes them all for the next repaint, so every method is synchronized. A rectangle is merged
+ * with another one when their bounding box is not much bigger than the two together, which keeps
+ * a run of characters or a scrolling pane a single rectangle, but a blinking cursor and a clock
+ * at the other end of the screen two small ones.
+ */
+class DamageRegion {
+
+    private final static int MaxRects = 16;  // beyond that, rectangles are merged even if it costs
+    private final static long MergeMinArea = 64 * 64;  // rectangles with a bounding box this small are always merged
+
+    private final ArrayList<Rectangle> rects = new ArrayList<>();
+
+    synchronized void add(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        Rectangle damage = new Rectangle(x, y, width, height);
+        // merging may make the damage overlap another rectangle, so look again until nothing merges
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < rects.size(); i++) {
+                Rectangle rect = rects.get(i);
+                if (shouldMerge(rect, damage)) {
+                    damage = rect.union(damage);
+                    rects.remove(i);
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        if (rects.size() == MaxRects) {
+            // merge with the rectangle that grows least
+            int best = 0;
+            long bestGrowth = Long.MAX_VALUE;
+            for (int i = 0; i < rects.size(); i++) {
+                long growth = area(rects.get(i).union(damage)) - area(rects.get(i));
+                if (growth < bestGrowth) {
+                    bestGrowth = growth;
+                    best = i;
+                }
+            }
+            damage = rects.remove(best).union(damage);
+        }
+        rects.add(damage);
+    }
+
+    /**
+     * @return the damaged rectangles, or null if nothing changed; the region is empty afterwards
+     */
+    synchronized Rectangle[] take() {
+        if (rects.isEmpty()) {
+            return null;
+        }
+        Rectangle[] damage = rects.toArray(new Rectangle[0]);
+        rects.clear();
+        return damage;
+    }
+
+    synchronized boolean isEmpty() {
+        return rects.isEmpty();
+    }
+
+    private static boolean shouldMerge(Rectangle a, Rectangle b) {
+        long unionArea = area(a.union(b));
+        return unionArea <= MergeMinArea || unionArea <= 2 * (area(a) + area(b));
+    }
+
+    private static long area(Rectangle r) {
+        return (long) r.width * r.height;
+    }
+}
@@ -32,6 +32,7 @@ THE SOFTWARE.
 package org.jsqueak.display;
 
 
+import org.jsqueak.SqueakConfig;
 import org.jsqueak.uilts.SqueakLogger;
 import org.jsqueak.core.SqueakVM;
 import org.jsqueak.input.InputNotifyThread;
@@ -44,6 +45,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Screen {
     public Dimension fExtent;
@@ -58,12 +60,23 @@ public class Screen {
     private KeyboardQueue fKeyboardQueue;
     private InputNotifyThread inputNotifyThread;
 
-    private Timer fHeartBeat;
-    private boolean fScreenChanged;
+    private Timer fFrameTimer;  // single shot, started when damage arrives and no frame is pending
+    private final AtomicBoolean fFrameScheduled = new AtomicBoolean();
+    private volatile long fLastFrameStart;
+    private volatile long fLastInput;
+    private final DamageRegion fDamage = new DamageRegion();
     private Object fVMSemaphore;
 
-    private final static boolean WITH_HEARTBEAT = true;
-    private final static int FPS = 30;
+    // Frame statistics, only updated on the EDT
+    private int fFrames;
+    private long fLastFrameNanos;
+    private long fLastFramePixels;
+    private long fTotalFrameNanos;
+    private long fTotalFramePixels;
+
+    private final static long FRAME_INTERVAL_NANOS = 1000000000L / SqueakConfig.Display.MAX_FPS;
+    private final static long INPUT_LATENCY_NANOS = SqueakConfig.Display.INPUT_LATENCY_MILLIS * 1000000L;
+    private final static int FRAME_STATS_INTERVAL = 1000;  // frames between two log lines of frame statistics
 
     // cf. http://doc.novsu.ac.ru/oreilly/java/awt/ch12_02.htm
 
@@ -129,6 +142,14 @@ public class Screen {
         fKeyboardQueue = new KeyboardQueue((SqueakVM) fVMSemaphore);
         fDisplay.addKeyListener(fKeyboardQueue);
 
+        if (SqueakConfig.Display.LATENCY_MODE) {
+            // remember when the user last did something, its effect on the screen is painted at once
+            InputTimeTracker inputTimeTracker = new InputTimeTracker();
+            fDisplay.addMouseListener(inputTimeTracker);
+            fDisplay.addMouseMotionListener(inputTimeTracker);
+            fDisplay.addKeyListener(inputTimeTracker);
+        }
+
         inputNotifyThread = new InputNotifyThread((SqueakVM) fVMSemaphore);
         inputNotifyThread.start();
 
@@ -196,29 +217,94 @@ public class Screen {
     public void open() {
         fFrame.pack();
         fFrame.setVisible(true);
-        if (WITH_HEARTBEAT) {
-            fHeartBeat = new Timer(1000 / FPS /* ms */, new ActionListener() {
-                public void actionPerformed(ActionEvent evt) {
-                    // Swing timers execute on EHT
-                    if (fScreenChanged) {
-                        // could use synchronization, but lets rather paint too often
-                        fScreenChanged = false;
-                        Dimension extent = fDisplay.getSize();
-                        //fDisplay.paintImmediately(0, 0, extent.width, extent.height);
-                        fDisplay.repaint(0, 0, extent.width, extent.height);
-                        // Toolkit.getDefaultToolkit().beep();      // FIXME remove
-                    }
+        fFrameTimer = new Timer(0, new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                // Swing timers execute on EHT
+                fLastFrameStart = System.nanoTime();
+                // damage arriving from now on needs another frame
+                fFrameScheduled.set(false);
+                Rectangle[] damage = fDamage.take();
+                if (damage != null) {
+                    paintDamage(damage);
                 }
-            });
-            fHeartBeat.start();
+            }
+        });
+        fFrameTimer.setRepeats(false);
+        if (!fDamage.isEmpty()) {
+            scheduleFrame(false);
+        }
+    }
+
+    /**
+     * Make sure a frame paints the damage added so far. Frames follow each other at most
+     * MAX_FPS times a second, unless the frame is wanted immediately or follows user input
+     * in latency mode; no timer runs while nothing changes.
+     */
+    private void scheduleFrame(boolean immediately) {
+        Timer frameTimer = fFrameTimer;
+        if (frameTimer == null || !fFrameScheduled.compareAndSet(false, true)) {
+            return;  // not open yet, or the pending frame will paint this damage as well
+        }
+        long now = System.nanoTime();
+        long delayNanos = fLastFrameStart + FRAME_INTERVAL_NANOS - now;
+        if (immediately || (SqueakConfig.Display.LATENCY_MODE && now - fLastInput < INPUT_LATENCY_NANOS)) {
+            delayNanos = 0;
         }
+        frameTimer.setInitialDelay((int) Math.max(0, delayNanos / 1000000));
+        frameTimer.restart();
+    }
+
+    /**
+     * Paint the damaged areas right away, one by one rather than their union, and account for the frame.
+     * Must run on the EDT.
+     */
+    private void paintDamage(Rectangle[] damage) {
+        long start = System.nanoTime();
+        Rectangle bounds = new Rectangle(fDisplay.getSize());
+        long pixels = 0;
+        for (Rectangle area : damage) {
+            Rectangle visible = area.intersection(bounds);
+            if (!visible.isEmpty()) {
+                fDisplay.paintImmediately(visible);
+                pixels += (long) visible.width * visible.height;
+            }
+        }
+        fLastFrameNanos = System.nanoTime() - start;
+        fLastFramePixels = pixels;
+        fTotalFrameNanos += fLastFrameNanos;
+        fTotalFramePixels += pixels;
+        fFrames++;
+        if (fFrames % FRAME_STATS_INTERVAL == 0) {
+            SqueakLogger.log_D("Screen: " + fFrames + " frames, on average " + (fTotalFramePixels / fFrames)
+                    + " pixels in " + (fTotalFrameNanos / fFrames / 1000) + " us per frame");
+        }
+    }
+
+    public int getFrames() {
+        return fFrames;
+    }
+
+    public long getLastFrameNanos() {
+        return fLastFrameNanos;
+    }
+
+    public long getLastFramePixels() {
+        return fLastFramePixels;
+    }
+
+    public long getTotalFrameNanos() {
+        return fTotalFrameNanos;
+    }
+
+    public long getTotalFramePixels() {
+        return fTotalFramePixels;
     }
 
     public void close() {
         fFrame.setVisible(false);
         fFrame.dispose();
-        if (WITH_HEARTBEAT) {
-            fHeartBeat.stop();
+        if (fFrameTimer != null) {
+            fFrameTimer.stop();
         }
     }
 
@@ -227,13 +313,13 @@ public class Screen {
     }
 
     public void redisplay(boolean immediately, final int cornerX, final int cornerY, final int width, final int height) {
-        //fDisplay.repaint(cornerX, cornerY, width, height);
-        fScreenChanged = true;
+        fDamage.add(cornerX, cornerY, width, height);
+        scheduleFrame(immediately);
     }
 
     public void redisplay(boolean immediately) {
-        //fDisplay.repaint();
-        fScreenChanged = true;
+        fDamage.add(0, 0, fExtent.width, fExtent.height);
+        scheduleFrame(immediately);
     }
 
     protected boolean scheduleRedisplay(boolean immediately, Runnable trigger) {
@@ -371,9 +457,48 @@ public class Screen {
         inputNotifyThread.quit();
         fFrame.setVisible(false);
         fFrame.dispose();
-        if (WITH_HEARTBEAT) {
-            fHeartBeat.stop();
+        if (fFrameTimer != null) {
+            fFrameTimer.stop();
+        }
+        if (SqueakVM.image != null) {
+            SqueakVM.image.awaitSnapshot();
         }
         System.exit(1);
     }
+
+    private class InputTimeTracker extends MouseAdapter implements KeyListener {
+        @Override
+        public void mousePressed(MouseEvent e) {
+            fLastInput = System.nanoTime();
+        }
+
+        @Override
+        public void mouseReleased(MouseEvent e) {
+            fLastInput = System.nanoTime();
+        }
+
+        @Override
+        public void mouseDragged(MouseEvent e) {
+            fLastInput = System.nanoTime();
+        }
+
+        @Override
+        public void mouseMoved(MouseEvent e) {
+            fLastInput = System.nanoTime();
+        }
+
+        @Override
+        public void keyTyped(KeyEvent e) {
+        }
+
+        @Override
+        public void keyPressed(KeyEvent e) {
+            fLastInput = System.nanoTime();
+        }
+
+        @Override
+        public void keyReleased(KeyEvent e) {
+            fLastInput = System.nanoTime();
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package org.jsqueak.uilts;
 
+import org.jsqueak.core.SqueakFloat;
 import org.jsqueak.core.SqueakObject;
 
 public class ObjectUtils {
@@ -19,9 +20,8 @@ public class ObjectUtils {
         }
 
         if ("a Float".equals(target.toString())) {
-            SqueakObject aFloat = (SqueakObject) target;
-            if (aFloat.getBits() != null) {
-                return aFloat.getBits().toString();
+            if (target instanceof SqueakFloat) {
+                return String.valueOf(((SqueakFloat) target).getValue());
             } else {
                 return "<Error Float Number>";
             }
@@ -0,0 +1,27 @@
+package org.jsqueak.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class BackgroundSnapshotTest {
+
+    @Test
+    void snapshotHoldsTheObjectsAsTheyWereWhenItStarted(@TempDir Path dir) throws Exception {
+        String image = TestImages.copyTo(dir).getPath();
+        String saved = dir.resolve("saved.image").toString();
+
+        List<String> written = TestImages.run(dir, image, "fingerprint", "started", "bgsave", saved,
+                "modify", "11", "fingerprint", "changed", "await");
+        assertEquals("true", TestImages.result(written, "bgsave"));
+        assertNotEquals(TestImages.result(written, "started"), TestImages.result(written, "changed"));
+
+        List<String> read = TestImages.run(dir, saved, "fingerprint", "read");
+        assertEquals(TestImages.result(written, "started"), TestImages.result(read, "read"));
+    }
+}
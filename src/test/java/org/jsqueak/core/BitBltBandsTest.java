@@ -0,0 +1,27 @@
+package org.jsqueak.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class BitBltBandsTest {
+
+    /**
+     * Bands are only used with more than one thread in the common pool, so the blits run in a JVM
+     * that has four, whatever the number of processors.
+     */
+    @Test
+    void largeBlitsInBandsGiveTheBaselineResults(@TempDir Path dir) throws Exception {
+        List<String> lines = TestImages.run(dir,
+                Collections.singletonList("-Djava.util.concurrent.ForkJoinPool.common.parallelism=4"),
+                BitBltScenarios.class, "300", "2", "large");
+        String poolSize = TestImages.result(lines, "pool");
+        assertNotEquals("0", poolSize, "no blit was done in bands");
+        BitBltTest.assertBaseline("bitblt-large.txt", lines.subList(0, lines.size() - 1));
+    }
+}
@@ -0,0 +1,221 @@
+package org.jsqueak.core;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Random BitBlt operations: forms of every depth, overlapping or without a source, clipped,
+ * with halftones and color maps, by most combination rules. Each is described by a line
+ * "index rule loaded affectedArea bitCount hash", where hash covers the destination words
+ * and the color map afterwards.
+ * <p>
+ * The resources bitblt-small.txt and bitblt-large.txt hold the lines of the BitBlt from before
+ * the loops per rule and the parallel bands, see BitBltTest.
+ */
+final class BitBltScenarios {
+
+    private final SqueakVM vm;
+    private final SqueakObject nil;
+    private final SqueakObject bitmapClass;
+    private final SqueakObject arrayClass;
+    private final BitBlt bitBlt;
+    private Random random;
+
+    BitBltScenarios(SqueakVM vm) {
+        this.vm = vm;
+        nil = SqueakVM.nilObj;
+        bitmapClass = vm.getSpecialObject(Squeak.splOb_ClassBitmap);
+        arrayClass = vm.getSpecialObject(Squeak.splOb_ClassArray);
+        bitBlt = new BitBlt(vm);
+    }
+
+    /**
+     * Run scenarios and print their lines as results of a test JVM, see TestImages.run,
+     * followed by the number of threads of the common pool.
+     * <p>
+     * Usage: BitBltScenarios count seed [large]
+     */
+    public static void main(String[] args) throws IOException {
+        BitBltScenarios scenarios = new BitBltScenarios(TestImages.vm());
+        boolean large = args.length > 2 && args[2].equals("large");
+        for (String line : scenarios.run(Integer.parseInt(args[0]), Long.parseLong(args[1]), large)) {
+            System.out.println("= " + line);
+        }
+        System.out.println("= pool " + ForkJoinPool.commonPool().getPoolSize());
+    }
+
+    /**
+     * @param large whether to blit forms of up to 1200x400 pixels rather than 90x40, which
+     *              makes some of them big enough to be done in parallel bands
+     * @return the lines of count scenarios made from seed
+     */
+    List<String> run(int count, long seed, boolean large) {
+        random = new Random(seed);
+        List<String> lines = new ArrayList<>();
+        for (int t = 0; t < count; t++) {
+            lines.add(t + " " + runOne(large));
+        }
+        return lines;
+    }
+
+    private String runOne(boolean large) {
+        int rule = random.nextInt(8) == 0 ? random.nextInt(34)
+                : new int[]{0, 3, 3, 4, 6, 7, 24, 25, 3, 30, 31, 32, 20, 27}[random.nextInt(14)];
+        if (rule == 22) {
+            rule = 32;  // OLDrgbDiff loops forever on a negative difference below 16 bits
+        }
+        int destDepth = depth();
+        if (rule == 24 || random.nextInt(4) == 0) {
+            destDepth = 32;
+        }
+        if (random.nextInt(10) == 0) {
+            destDepth = -destDepth;
+        }
+        int maxWidth = large ? 1200 : 90;
+        int maxHeight = large ? 400 : 40;
+        int destWidth = 1 + random.nextInt(maxWidth);
+        int destHeight = 1 + random.nextInt(maxHeight);
+        SqueakObject dest = form(destWidth, destHeight, destDepth);
+        SqueakObject source = nil;
+        int kind = random.nextInt(10);
+        if (kind < 6) {
+            int sourceWidth = 1 + random.nextInt(maxWidth);
+            int sourceHeight = 1 + random.nextInt(maxHeight);
+            int sourceDepth = random.nextInt(2) == 0 ? destDepth : (random.nextInt(8) == 0 ? -depth() : depth());
+            source = form(sourceWidth, sourceHeight, sourceDepth);
+        } else if (kind < 8) {
+            source = dest;
+        }
+
+        SqueakObject bbObject = new SqueakObject(SqueakVM.image, arrayClass, 15, nil);
+        bbObject.setPointer(0, dest);
+        bbObject.setPointer(1, source);
+        if (random.nextInt(6) == 0) {
+            bbObject.setPointer(2, bitmap(1 + random.nextInt(4), true));
+        }
+        bbObject.setPointer(3, rule);
+        bbObject.setPointer(4, random.nextInt(destWidth + 20) - 10);
+        bbObject.setPointer(5, random.nextInt(destHeight + 10) - 5);
+        bbObject.setPointer(6, random.nextInt(destWidth + 20));
+        bbObject.setPointer(7, random.nextInt(destHeight + 10));
+        if (random.nextInt(3) == 0) {
+            bbObject.setPointer(4, 0);
+            bbObject.setPointer(5, 0);
+            bbObject.setPointer(6, destWidth);
+            bbObject.setPointer(7, destHeight);
+        }
+        bbObject.setPointer(8, random.nextInt(60) - 5);
+        bbObject.setPointer(9, random.nextInt(30) - 5);
+        if (random.nextInt(2) == 0) {
+            bbObject.setPointer(10, random.nextInt(20) - 10);
+            bbObject.setPointer(11, random.nextInt(10) - 5);
+            bbObject.setPointer(12, random.nextInt(destWidth + 20));
+            bbObject.setPointer(13, random.nextInt(destHeight + 10));
+        } else {
+            bbObject.setPointer(10, 0);
+            bbObject.setPointer(11, 0);
+            bbObject.setPointer(12, destWidth);
+            bbObject.setPointer(13, destHeight);
+        }
+        SqueakObject colorMap = colorMap(rule);
+        if (colorMap != null) {
+            bbObject.setPointer(14, colorMap);
+        }
+
+        int argCount = 0;
+        if (rule == 30 || rule == 31) {
+            vm.push(random.nextInt(256));  // the source alpha
+            argCount = 1;
+        }
+        SqueakObject display = random.nextInt(3) == 0 ? dest : null;
+        int[] destBits = ((SqueakObject) dest.getPointer(0)).getWords();
+        String result;
+        try {
+            boolean loaded = bitBlt.loadBitBlt(bbObject, argCount, false, display);
+            Rectangle affectedArea = loaded ? bitBlt.copyBits() : null;
+            result = loaded + " " + affectedArea + " " + bitBlt.bitCount;
+        } catch (RuntimeException e) {
+            result = "EXC " + e.getClass().getSimpleName();
+        }
+        if (argCount == 1 && vm.top() instanceof Integer) {
+            vm.pop();
+        }
+        long hash = hash(destBits);
+        if (colorMap != null && colorMap.getWords() != null) {
+            hash = hash * 31 + hash(colorMap.getWords());
+        }
+        return rule + " " + result + " " + hash;
+    }
+
+    /**
+     * No color map, a table of 2 to 512 entries, a color map with shifts and masks from or to
+     * 16 bit pixels, or for the rules that tally, an empty table.
+     */
+    private SqueakObject colorMap(int rule) {
+        int kind = random.nextInt(6);
+        if (kind == 0) {
+            return bitmap(1 << (1 + random.nextInt(9)), true);
+        }
+        if (kind == 1) {
+            SqueakObject colorMap = new SqueakObject(SqueakVM.image, arrayClass, 3, nil);
+            SqueakObject shifts = bitmap(4, false);
+            SqueakObject masks = bitmap(4, false);
+            if (random.nextBoolean()) {
+                System.arraycopy(new int[]{-9, -6, -3, 0}, 0, shifts.getWords(), 0, 4);
+                System.arraycopy(new int[]{0xF80000, 0xF800, 0xF8, 0}, 0, masks.getWords(), 0, 4);
+            } else {
+                System.arraycopy(new int[]{9, 6, 3, 0}, 0, shifts.getWords(), 0, 4);
+                System.arraycopy(new int[]{0x7C00, 0x3E0, 0x1F, 0}, 0, masks.getWords(), 0, 4);
+            }
+            colorMap.setPointer(0, shifts);
+            colorMap.setPointer(1, masks);
+            colorMap.setPointer(2, random.nextBoolean() ? nil : bitmap(1 << (3 + random.nextInt(12)), true));
+            return colorMap;
+        }
+        if (kind == 2 && (rule == 23 || rule == 33)) {
+            return bitmap(1 << (1 + random.nextInt(12)), false);
+        }
+        return null;
+    }
+
+    private SqueakObject bitmap(int size, boolean fill) {
+        SqueakObject bitmap = new SqueakObject(SqueakVM.image, bitmapClass, size, nil);
+        int[] words = bitmap.getWords();
+        if (fill) {
+            for (int i = 0; i < size; i++) {
+                words[i] = random.nextInt(4) == 0 ? 0 : random.nextInt();
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * A Form of random words, with depth negative for little endian pixels.
+     */
+    private SqueakObject form(int width, int height, int depth) {
+        int pixelsPerWord = 32 / Math.abs(depth);
+        int pitch = (width + pixelsPerWord - 1) / pixelsPerWord;
+        SqueakObject form = new SqueakObject(SqueakVM.image, arrayClass, 5, nil);
+        form.setPointer(0, bitmap(pitch * height, true));
+        form.setPointer(1, width);
+        form.setPointer(2, height);
+        form.setPointer(3, depth);
+        return form;
+    }
+
+    private int depth() {
+        return new int[]{1, 2, 4, 8, 16, 32}[random.nextInt(6)];
+    }
+
+    private static long hash(int[] words) {
+        long hash = 1;
+        for (int word : words) {
+            hash = hash * 1000003 + word;
+        }
+        return hash;
+    }
+}
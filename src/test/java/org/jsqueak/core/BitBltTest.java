@@ -0,0 +1,100 @@
+package org.jsqueak.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BitBltTest {
+
+    @Test
+    void smallBlitsGiveTheBaselineResults() throws IOException {
+        assertBaseline("bitblt-small.txt", new BitBltScenarios(TestImages.vm()).run(2000, 1, false));
+    }
+
+    @Test
+    void largeBlitsGiveTheBaselineResults() throws IOException {
+        assertBaseline("bitblt-large.txt", new BitBltScenarios(TestImages.vm()).run(300, 2, true));
+    }
+
+    /**
+     * The loop of mergeRow for each rule must write what mergeFnwith gives for every word.
+     */
+    @Test
+    void rowLoopsMergeLikeTheMergeFunction() throws IOException {
+        SqueakVM vm = TestImages.vm();
+        SqueakObject nil = SqueakVM.nilObj;
+        SqueakObject bitmapClass = vm.getSpecialObject(Squeak.splOb_ClassBitmap);
+        SqueakObject arrayClass = vm.getSpecialObject(Squeak.splOb_ClassArray);
+        Random random = new Random(7);
+        int words = 64;
+        for (int rule = 0; rule < 34; rule++) {
+            if (rule == 16 || rule == 17 || rule == 22 || rule == 23 || rule == 33) {
+                // 16 and 17 are no rules, OLDrgbDiff may not end below 16 bits, the tally rules need a color map
+                continue;
+            }
+            for (int depth = 1; depth <= 32; depth *= 2) {
+                for (int hInc = -1; hInc <= 1; hInc += 2) {
+                    SqueakObject bitmap = new SqueakObject(SqueakVM.image, bitmapClass, words, nil);
+                    int[] bits = bitmap.getWords();
+                    for (int i = 0; i < words; i++) {
+                        bits[i] = random.nextInt();
+                    }
+                    SqueakObject form = new SqueakObject(SqueakVM.image, arrayClass, 5, nil);
+                    form.setPointer(0, bitmap);
+                    form.setPointer(1, words * 32 / depth);
+                    form.setPointer(2, 1);
+                    form.setPointer(3, depth);
+                    SqueakObject bbObject = new SqueakObject(SqueakVM.image, arrayClass, 15, nil);
+                    bbObject.setPointer(0, form);
+                    bbObject.setPointer(3, rule);
+                    for (int i = 4; i < 14; i++) {
+                        bbObject.setPointer(i, 0);
+                    }
+                    int argCount = 0;
+                    if (rule == 30 || rule == 31) {
+                        vm.push(random.nextInt(256));  // the source alpha, popped by loadBitBlt
+                        argCount = 1;
+                    }
+                    BitBlt bitBlt = new BitBlt(vm);
+                    assertTrue(bitBlt.loadBitBlt(bbObject, argCount, false, null), "rule " + rule + " depth " + depth);
+
+                    int n = words - 8;
+                    int destIndex = hInc > 0 ? 3 : 3 + n - 1;
+                    int[] row = new int[n];
+                    for (int j = 0; j < n; j++) {
+                        row[j] = random.nextInt();
+                    }
+                    int[] expected = bits.clone();
+                    for (int j = 0; j < n; j++) {
+                        int d = destIndex + j * hInc;
+                        expected[d] = bitBlt.mergeFnwith(row[j], expected[d]);
+                    }
+                    bitBlt.mergeRow(row, n, destIndex, hInc);
+                    assertArrayEquals(expected, bits, "rule " + rule + " depth " + depth + " hInc " + hInc);
+                }
+            }
+        }
+    }
+
+    static void assertBaseline(String resource, List<String> lines) throws IOException {
+        List<String> baseline;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                BitBltTest.class.getResourceAsStream(resource), StandardCharsets.UTF_8))) {
+            baseline = in.lines().collect(Collectors.toList());
+        }
+        assertEquals(baseline.size(), lines.size());
+        for (int i = 0; i < baseline.size(); i++) {
+            assertEquals(baseline.get(i), lines.get(i));
+        }
+    }
+}
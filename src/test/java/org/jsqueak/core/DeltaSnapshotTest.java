@@ -0,0 +1,44 @@
+package org.jsqueak.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class DeltaSnapshotTest {
+
+    @Test
+    void imageLoadsWithItsDeltas(@TempDir Path dir) throws Exception {
+        String image = TestImages.copyTo(dir).getPath();
+
+        List<String> first = TestImages.run(dir, image, "fingerprint", "base", "modify", "1", "delta",
+                "fingerprint", "first");
+        assertEquals("true", TestImages.result(first, "delta"));
+        assertNotEquals(TestImages.result(first, "base"), TestImages.result(first, "first"));
+
+        List<String> second = TestImages.run(dir, image, "fingerprint", "read", "modify", "2", "delta",
+                "fingerprint", "second");
+        assertEquals(TestImages.result(first, "first"), TestImages.result(second, "read"));
+        assertEquals("true", TestImages.result(second, "delta"));
+
+        List<String> read = TestImages.run(dir, image, "fingerprint", "read");
+        assertEquals(TestImages.result(second, "second"), TestImages.result(read, "read"));
+    }
+
+    @Test
+    void fullSnapshotReplacesTheDeltas(@TempDir Path dir) throws Exception {
+        String image = TestImages.copyTo(dir).getPath();
+        TestImages.run(dir, image, "modify", "1", "delta");
+
+        List<String> saved = TestImages.run(dir, image, "modify", "2", "save", image, "modify", "3", "delta",
+                "fingerprint", "changed");
+        assertEquals("true", TestImages.result(saved, "delta"));
+
+        List<String> read = TestImages.run(dir, image, "fingerprint", "read");
+        assertEquals(TestImages.result(saved, "changed"), TestImages.result(read, "read"));
+    }
+}
@@ -0,0 +1,136 @@
+package org.jsqueak.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DrawLoopTest {
+
+    private final SqueakVM vm;
+    private final SqueakObject nil;
+    private final Random random = new Random(3);
+
+    DrawLoopTest() throws IOException {
+        vm = TestImages.vm();
+        nil = SqueakVM.nilObj;
+    }
+
+    /**
+     * Lines drawn by drawLoop must be those of BitBlt>>drawLoopX:Y:, which does a copyBits per point.
+     */
+    @Test
+    void linesAreDrawnLikeThePrimitiveFallback() {
+        BitBlt bitBlt = new BitBlt(vm);
+        BitBlt fallbackBitBlt = new BitBlt(vm);
+        for (int t = 0; t < 500; t++) {
+            int depth = new int[]{1, 8, 16, 32}[random.nextInt(4)];
+            int width = 1 + random.nextInt(300);
+            int height = 1 + random.nextInt(200);
+            SqueakObject dest = form(width, height, depth);
+            SqueakObject fallbackDest = form(width, height, depth);
+            System.arraycopy(words(dest), 0, words(fallbackDest), 0, words(dest).length);
+            SqueakObject pen = random.nextBoolean() ? nil : form(1 + random.nextInt(4), 1 + random.nextInt(4), depth);
+            int rule = new int[]{3, 7, 6, 25, 0}[random.nextInt(5)];
+            int x = random.nextInt(width + 40) - 20;
+            int y = random.nextInt(height + 40) - 20;
+            int xDelta = random.nextInt(400) - 200;
+            int yDelta = random.nextInt(300) - 150;
+            boolean clipped = random.nextBoolean();
+            SqueakObject bbObject = bitBltObject(dest, pen, rule, x, y, clipped);
+            SqueakObject fallbackObject = bitBltObject(fallbackDest, pen, rule, x, y, clipped);
+
+            assertTrue(bitBlt.loadBitBlt(bbObject, 0, false, dest));
+            assertTrue(bitBlt.drawLoop(bbObject, xDelta, yDelta, new Rectangle(0, 0, -1, -1)));
+            drawLoopFallback(fallbackBitBlt, fallbackObject, xDelta, yDelta);
+
+            String line = "line " + t + " from " + x + "@" + y + " by " + xDelta + "@" + yDelta;
+            assertEquals(fallbackObject.getPointer(4), bbObject.getPointer(4), line);
+            assertEquals(fallbackObject.getPointer(5), bbObject.getPointer(5), line);
+            assertArrayEquals(words(fallbackDest), words(dest), line);
+        }
+    }
+
+    /**
+     * BitBlt>>drawLoopX:Y: of Squeak 2.2.
+     */
+    private static void drawLoopFallback(BitBlt bitBlt, SqueakObject bbObject, int xDelta, int yDelta) {
+        int dx = Integer.signum(xDelta);
+        int dy = Integer.signum(yDelta);
+        int px = Math.abs(yDelta);
+        int py = Math.abs(xDelta);
+        if (py > px) {
+            int p = py / 2;
+            for (int i = 1; i <= py; i++) {
+                bbObject.setPointer(4, (Integer) bbObject.getPointer(4) + dx);
+                if ((p -= px) < 0) {
+                    bbObject.setPointer(5, (Integer) bbObject.getPointer(5) + dy);
+                    p += py;
+                }
+                if (i < py) {
+                    assertTrue(bitBlt.loadBitBlt(bbObject, 0, false, null));
+                    bitBlt.copyBits();
+                }
+            }
+        } else {
+            int p = px / 2;
+            for (int i = 1; i <= px; i++) {
+                bbObject.setPointer(5, (Integer) bbObject.getPointer(5) + dy);
+                if ((p -= py) < 0) {
+                    bbObject.setPointer(4, (Integer) bbObject.getPointer(4) + dx);
+                    p += px;
+                }
+                if (i < px) {
+                    assertTrue(bitBlt.loadBitBlt(bbObject, 0, false, null));
+                    bitBlt.copyBits();
+                }
+            }
+        }
+    }
+
+    /**
+     * A 3x2 pen at x@y, clipped to part of dest or not.
+     */
+    private SqueakObject bitBltObject(SqueakObject dest, SqueakObject pen, int rule, int x, int y, boolean clipped) {
+        SqueakObject bbObject = new SqueakObject(SqueakVM.image, vm.getSpecialObject(Squeak.splOb_ClassArray), 15, nil);
+        bbObject.setPointer(0, dest);
+        bbObject.setPointer(1, pen);
+        bbObject.setPointer(3, rule);
+        bbObject.setPointer(4, x);
+        bbObject.setPointer(5, y);
+        bbObject.setPointer(6, 3);
+        bbObject.setPointer(7, 2);
+        if (clipped) {
+            bbObject.setPointer(10, 5);
+            bbObject.setPointer(11, 5);
+            bbObject.setPointer(12, (Integer) dest.getPointer(1) / 2);
+            bbObject.setPointer(13, (Integer) dest.getPointer(2) / 2);
+        }
+        return bbObject;
+    }
+
+    private SqueakObject form(int width, int height, int depth) {
+        int pixelsPerWord = 32 / depth;
+        SqueakObject bitmap = new SqueakObject(SqueakVM.image, vm.getSpecialObject(Squeak.splOb_ClassBitmap),
+                (width + pixelsPerWord - 1) / pixelsPerWord * height, nil);
+        int[] words = bitmap.getWords();
+        for (int i = 0; i < words.length; i++) {
+            words[i] = random.nextInt();
+        }
+        SqueakObject form = new SqueakObject(SqueakVM.image, vm.getSpecialObject(Squeak.splOb_ClassArray), 5, nil);
+        form.setPointer(0, bitmap);
+        form.setPointer(1, width);
+        form.setPointer(2, height);
+        form.setPointer(3, depth);
+        return form;
+    }
+
+    private static int[] words(SqueakObject form) {
+        return ((SqueakObject) form.getPointer(0)).getWords();
+    }
+}
@@ -0,0 +1,156 @@
+package org.jsqueak.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Loads an image and runs commands on it, for the tests that need an object memory of
+ * their own, see TestImages.run. Results are printed as lines "= key value".
+ * <p>
+ * Usage: ImageTool imageFile command...
+ * <pre>
+ *   fingerprint label  print the fingerprint of the object graph as "label"
+ *   cached             print whether the image was read from the linked heap
+ *   heap               write the linked heap
+ *   save file          save the image to file
+ *   bgsave file        start saving the image to file in the background
+ *   await              wait for the background save
+ *   delta              save a delta snapshot
+ *   modify n           change an Array, a String and add new objects, using n
+ * </pre>
+ */
+public class ImageTool {
+
+    public static void main(String[] args) throws IOException {
+        SqueakImage image = new SqueakImage(new File(args[0]));
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "fingerprint":
+                    result(args[++i], fingerprint(image.specialObjectsArray));
+                    break;
+                case "cached":
+                    result("cached", image.isLoadedFromHeapCache());
+                    break;
+                case "heap":
+                    image.writeHeapCache();
+                    break;
+                case "save":
+                    image.save(new File(args[++i]));
+                    break;
+                case "bgsave":
+                    result("bgsave", image.saveInBackground(new File(args[++i]), () -> {
+                    }));
+                    break;
+                case "await":
+                    image.awaitSnapshot();
+                    break;
+                case "delta":
+                    result("delta", image.saveDelta());
+                    break;
+                case "modify":
+                    modify(image, Integer.parseInt(args[++i]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown command " + args[i]);
+            }
+        }
+    }
+
+    private static void result(String key, Object value) {
+        System.out.println("= " + key + " " + value);
+    }
+
+    /**
+     * All objects reachable from root, in breadth first order.
+     */
+    static ArrayList<SqueakObject> reachableFrom(SqueakObject root) {
+        ArrayList<SqueakObject> objects = new ArrayList<>();
+        IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<>();
+        objects.add(root);
+        seen.put(root, true);
+        for (int i = 0; i < objects.size(); i++) {
+            SqueakObject obj = objects.get(i);
+            ArrayList<Object> refs = new ArrayList<>();
+            refs.add(obj.getSqClass());
+            if (obj.getPointers() != null) {
+                refs.addAll(Arrays.asList(obj.getPointers()));
+            }
+            for (Object ref : refs) {
+                if (ref instanceof SqueakObject && seen.put(ref, true) == null) {
+                    objects.add((SqueakObject) ref);
+                }
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * A hash of the object graph reachable from root: the format, hash, class, pointers and bits
+     * of every object, with objects numbered in breadth first order. It does not depend on where
+     * the objects are in the object table, so it is the same for an image and its copies.
+     */
+    static long fingerprint(SqueakObject root) {
+        ArrayList<SqueakObject> objects = reachableFrom(root);
+        IdentityHashMap<Object, Integer> indices = new IdentityHashMap<>();
+        for (SqueakObject obj : objects) {
+            indices.put(obj, indices.size());
+        }
+        long h = 17;
+        for (SqueakObject obj : objects) {
+            h = h * 31 + obj.format;
+            h = h * 31 + obj.hash;
+            h = h * 31 + indices.get(obj.getSqClass());
+            Object[] pointers = obj.getPointers();
+            if (pointers != null) {
+                for (Object ptr : pointers) {
+                    h = h * 31 + (ptr instanceof Integer ? ((Integer) ptr) * 2L + 1 : indices.get(ptr) * 2L);
+                }
+            }
+            if (obj instanceof SqueakFloat) {
+                h = h * 31 + Double.hashCode(((SqueakFloat) obj).getFloatBits());
+            } else if (obj.getBits() instanceof byte[]) {
+                h = h * 31 + Arrays.hashCode((byte[]) obj.getBits());
+            } else if (obj.getBits() instanceof int[]) {
+                h = h * 31 + Arrays.hashCode((int[]) obj.getBits());
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Put a new Array holding n, a new Float and the old first element into the first element of
+     * an Array, and change the first character of a String, both well into the object graph.
+     */
+    private static void modify(SqueakImage image, int n) {
+        Object[] specials = image.specialObjectsArray.getPointers();
+        SqueakObject nil = (SqueakObject) specials[Squeak.splOb_NilObject];
+        SqueakObject arrayClass = (SqueakObject) specials[Squeak.splOb_ClassArray];
+        SqueakObject stringClass = (SqueakObject) specials[Squeak.splOb_ClassString];
+        ArrayList<SqueakObject> objects = reachableFrom(image.specialObjectsArray);
+        SqueakObject array = null;
+        SqueakObject string = null;
+        for (int i = objects.size() / 2; i < objects.size() && (array == null || string == null); i++) {
+            SqueakObject obj = objects.get(i);
+            if (array == null && obj.getSqClass() == arrayClass && obj.pointersSize() > 0) {
+                array = obj;
+            }
+            if (string == null && obj.getSqClass() == stringClass && ((byte[]) obj.getBits()).length > 0) {
+                string = obj;
+            }
+        }
+
+        SqueakFloat newFloat = new SqueakFloat(image, (SqueakObject) specials[Squeak.splOb_ClassFloat]);
+        newFloat.setFloatBits(n + 0.5);
+        SqueakObject newArray = new SqueakObject(image, arrayClass, 3, nil);
+        newArray.setPointer(0, n);
+        newArray.setPointer(1, newFloat);
+        newArray.setPointer(2, array.getPointer(0));
+        array.setPointer(0, newArray);
+
+        ((byte[]) string.getBits())[0] ^= n;
+        string.dirty = true;
+    }
+}
@@ -0,0 +1,32 @@
+package org.jsqueak.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ImageWriterTest {
+
+    @Test
+    void savedImageLoadsAsTheSameObjects(@TempDir Path dir) throws Exception {
+        String image = TestImages.copyTo(dir).getPath();
+        String saved = dir.resolve("saved.image").toString();
+
+        List<String> written = TestImages.run(dir, image, "fingerprint", "saved", "save", saved);
+        List<String> read = TestImages.run(dir, saved, "fingerprint", "read");
+        assertEquals(TestImages.result(written, "saved"), TestImages.result(read, "read"));
+    }
+
+    @Test
+    void gzippedImageLoadsAsTheSameObjects(@TempDir Path dir) throws Exception {
+        String image = TestImages.copyTo(dir).getPath();
+        String saved = dir.resolve("saved.image.gz").toString();
+
+        List<String> written = TestImages.run(dir, image, "modify", "5", "fingerprint", "saved", "save", saved);
+        List<String> read = TestImages.run(dir, saved, "fingerprint", "read");
+        assertEquals(TestImages.result(written, "saved"), TestImages.result(read, "read"));
+    }
+}
@@ -0,0 +1,38 @@
+package org.jsqueak.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LinkedHeapTest {
+
+    @Test
+    void imageLoadsFromTheLinkedHeap(@TempDir Path dir) throws Exception {
+        String image = TestImages.copyTo(dir).getPath();
+
+        List<String> written = TestImages.run(dir, image, "cached", "fingerprint", "read", "heap");
+        assertEquals("false", TestImages.result(written, "cached"));
+        assertEquals(1, dir.toFile().listFiles((d, name) -> name.endsWith(".heap")).length);
+
+        List<String> cached = TestImages.run(dir, image, "cached", "fingerprint", "read");
+        assertEquals("true", TestImages.result(cached, "cached"));
+        assertEquals(TestImages.result(written, "read"), TestImages.result(cached, "read"));
+    }
+
+    @Test
+    void linkedHeapOfAnOlderImageIsIgnored(@TempDir Path dir) throws Exception {
+        File image = TestImages.copyTo(dir);
+        TestImages.run(dir, image.getPath(), "heap");
+
+        List<String> saved = TestImages.run(dir, image.getPath(), "modify", "3", "fingerprint", "saved",
+                "save", image.getPath());
+        List<String> loaded = TestImages.run(dir, image.getPath(), "cached", "fingerprint", "read");
+        assertEquals("false", TestImages.result(loaded, "cached"));
+        assertEquals(TestImages.result(saved, "saved"), TestImages.result(loaded, "read"));
+    }
+}
@@ -0,0 +1,177 @@
+package org.jsqueak.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScanCharactersTest {
+
+    private final SqueakVM vm;
+    private final SqueakObject nil;
+    private final SqueakObject arrayClass;
+    private final Random random = new Random(5);
+
+    ScanCharactersTest() throws IOException {
+        vm = TestImages.vm();
+        nil = SqueakVM.nilObj;
+        arrayClass = vm.getSpecialObject(Squeak.splOb_ClassArray);
+    }
+
+    /**
+     * Strings scanned by scanCharacters must end as with the Smalltalk code of
+     * CharacterScanner>>scanCharactersFrom:to:in:rightX:stopConditions:displaying:,
+     * which does a copyBits per character.
+     */
+    @Test
+    void charactersAreScannedLikeThePrimitiveFallback() {
+        BitBlt bitBlt = new BitBlt(vm);
+        BitBlt fallbackBitBlt = new BitBlt(vm);
+        for (int t = 0; t < 500; t++) {
+            SqueakObject xTable = new SqueakObject(SqueakVM.image, arrayClass, 257, nil);
+            int x = 0;
+            for (int i = 0; i <= 256; i++) {
+                xTable.setPointer(i, x);
+                x += random.nextInt(12);
+            }
+            SqueakObject stops = new SqueakObject(SqueakVM.image, arrayClass, 258, nil);
+            for (int i = 0; i < 258; i++) {
+                if (i >= 256 || random.nextInt(30) == 0) {
+                    stops.setPointer(i, new SqueakObject(SqueakVM.image, arrayClass, 0, nil));
+                }
+            }
+            byte[] string = new byte[1 + random.nextInt(60)];
+            for (int i = 0; i < string.length; i++) {
+                string[i] = (byte) (random.nextInt(4) == 0 ? 32 + random.nextInt(90) : random.nextInt(256));
+            }
+            int height = 1 + random.nextInt(16);
+            int depth = new int[]{1, 8, 32}[random.nextInt(3)];
+            SqueakObject dest = form(1 + random.nextInt(400), height + random.nextInt(10), depth);
+            SqueakObject fallbackDest = form((Integer) dest.getPointer(1), (Integer) dest.getPointer(2), depth);
+            System.arraycopy(words(dest), 0, words(fallbackDest), 0, words(dest).length);
+            SqueakObject glyphs = form(Math.max(1, x), height, 1);
+            int rule = new int[]{3, 25, 7, 24}[random.nextInt(4)];
+            int destX = random.nextInt(50) - 10;
+            int rightX = random.nextInt(500);
+            int start = 1 + random.nextInt(string.length);
+            int stop = start - 1 + random.nextInt(string.length - start + 2);
+            boolean display = random.nextBoolean();
+            SqueakObject scanner = scanner(dest, glyphs, rule, destX, height, xTable);
+            SqueakObject fallbackScanner = scanner(fallbackDest, glyphs, rule, destX, height, xTable);
+
+            Object stopCondition = bitBlt.scanCharacters(scanner, start, stop, string, rightX, stops.getPointers(),
+                    display, null, new Rectangle(0, 0, -1, -1));
+            Object fallbackStopCondition = scanCharactersFallback(fallbackBitBlt, fallbackScanner, start, stop, string,
+                    rightX, stops.getPointers(), display);
+
+            String scan = "scan " + t + " of " + start + " to " + stop;
+            assertNotNull(stopCondition, scan);
+            assertSame(fallbackStopCondition, stopCondition, scan);
+            for (int i : new int[]{4, 6, 8, BitBlt.Const.BBLastIndex}) {
+                assertEquals(fallbackScanner.getPointer(i), scanner.getPointer(i), scan);
+            }
+            assertArrayEquals(words(fallbackDest), words(dest), scan);
+        }
+    }
+
+    /**
+     * A glyph missing from the xTable fails the primitive before any of the glyphs in front of it
+     * is drawn, or XORed text would be drawn twice by the Smalltalk code that runs next.
+     */
+    @Test
+    void failureLeavesTheDestinationAsItWas() {
+        SqueakObject xTable = new SqueakObject(SqueakVM.image, arrayClass, 257, nil);
+        for (int i = 0; i <= 256; i++) {
+            xTable.setPointer(i, i * 6);
+        }
+        xTable.setPointer('c', nil);
+        SqueakObject stops = new SqueakObject(SqueakVM.image, arrayClass, 258, nil);
+        for (int i = 256; i < 258; i++) {
+            stops.setPointer(i, new SqueakObject(SqueakVM.image, arrayClass, 0, nil));
+        }
+        byte[] string = "abababc".getBytes();
+        SqueakObject dest = form(200, 12, 8);
+        int[] destWords = words(dest).clone();
+        SqueakObject scanner = scanner(dest, form(257 * 6, 12, 1), 6, 0, 12, xTable);
+
+        Object stopCondition = new BitBlt(vm).scanCharacters(scanner, 1, string.length, string, 200,
+                stops.getPointers(), true, null, new Rectangle(0, 0, -1, -1));
+        assertNull(stopCondition);
+        assertEquals(0, scanner.getPointer(4));
+        assertArrayEquals(destWords, words(dest));
+    }
+
+    /**
+     * CharacterScanner>>scanCharactersFrom:to:in:rightX:stopConditions:displaying: of Squeak 2.2.
+     */
+    private Object scanCharactersFallback(BitBlt bitBlt, SqueakObject scanner, int start, int stop, byte[] string,
+                                          int rightX, Object[] stops, boolean display) {
+        Object[] xTable = ((SqueakObject) scanner.getPointer(BitBlt.Const.BBXTableIndex)).getPointers();
+        scanner.setPointer(BitBlt.Const.BBLastIndex, start);
+        while ((Integer) scanner.getPointer(BitBlt.Const.BBLastIndex) <= stop) {
+            int lastIndex = (Integer) scanner.getPointer(BitBlt.Const.BBLastIndex);
+            int ascii = string[lastIndex - 1] & 0xFF;
+            if (stops[ascii] != nil) {
+                return stops[ascii];
+            }
+            int sourceX = (Integer) xTable[ascii];
+            int width = (Integer) xTable[ascii + 1] - sourceX;
+            scanner.setPointer(8, sourceX);
+            scanner.setPointer(6, width);
+            int nextDestX = (Integer) scanner.getPointer(4) + width;
+            if (nextDestX > rightX) {
+                return stops[BitBlt.Const.CrossedX - 1];
+            }
+            if (display) {
+                assertTrue(bitBlt.loadBitBlt(scanner, 0, false, null));
+                bitBlt.copyBits();
+            }
+            scanner.setPointer(4, nextDestX);
+            scanner.setPointer(BitBlt.Const.BBLastIndex, lastIndex + 1);
+        }
+        scanner.setPointer(BitBlt.Const.BBLastIndex, stop);
+        return stops[BitBlt.Const.EndOfRun - 1];
+    }
+
+    private SqueakObject scanner(SqueakObject dest, SqueakObject glyphs, int rule, int destX, int height,
+                                 SqueakObject xTable) {
+        SqueakObject scanner = new SqueakObject(SqueakVM.image, arrayClass, 31, nil);
+        scanner.setPointer(0, dest);
+        scanner.setPointer(1, glyphs);
+        scanner.setPointer(3, rule);
+        scanner.setPointer(4, destX);
+        scanner.setPointer(5, 2);
+        scanner.setPointer(7, height);
+        scanner.setPointer(9, 0);
+        scanner.setPointer(BitBlt.Const.BBXTableIndex, xTable);
+        return scanner;
+    }
+
+    private SqueakObject form(int width, int height, int depth) {
+        int pixelsPerWord = 32 / depth;
+        SqueakObject bitmap = new SqueakObject(SqueakVM.image, vm.getSpecialObject(Squeak.splOb_ClassBitmap),
+                (width + pixelsPerWord - 1) / pixelsPerWord * height, nil);
+        int[] words = bitmap.getWords();
+        for (int i = 0; i < words.length; i++) {
+            words[i] = random.nextInt();
+        }
+        SqueakObject form = new SqueakObject(SqueakVM.image, arrayClass, 5, nil);
+        form.setPointer(0, bitmap);
+        form.setPointer(1, width);
+        form.setPointer(2, height);
+        form.setPointer(3, depth);
+        return form;
+    }
+
+    private static int[] words(SqueakObject form) {
+        return ((SqueakObject) form.getPointer(0)).getWords();
+    }
+}
@@ -0,0 +1,118 @@
+package org.jsqueak.core;
+
+import org.jsqueak.SqueakConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The image the tests run on, which is the startable image of the resources.
+ * <p>
+ * The object memory is a single one per JVM, and loading an image adds to it, so a test that
+ * loads, writes and loads images again runs every load in a JVM of its own, see {@link #run}.
+ * Tests that only need some objects to work on share the image loaded by {@link #vm()}.
+ */
+final class TestImages {
+
+    private static SqueakVM vm;
+
+    private TestImages() {
+    }
+
+    /**
+     * The image loaded into this JVM, with a VM on it, loaded on first use.
+     */
+    static synchronized SqueakVM vm() throws IOException {
+        if (vm == null) {
+            try (InputStream in = TestImages.class.getResourceAsStream(SqueakConfig.getImageName())) {
+                vm = new SqueakVM(new SqueakImage(in));
+            }
+            SqueakVM.INSTANCE = vm;
+        }
+        return vm;
+    }
+
+    /**
+     * Copy the startable image into dir, where it can be saved over.
+     */
+    static File copyTo(Path dir) throws IOException {
+        File image = dir.resolve(new File(SqueakConfig.getImageName()).getName()).toFile();
+        try (InputStream in = TestImages.class.getResourceAsStream(SqueakConfig.getImageName())) {
+            Files.copy(in, image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return image;
+    }
+
+    /**
+     * Run ImageTool with args in a new JVM. Its temporary directory, where the linked heap
+     * goes, is dir.
+     *
+     * @return the lines ImageTool printed as results
+     */
+    static List<String> run(Path dir, String... args) throws IOException, InterruptedException {
+        return run(dir, new ArrayList<>(), ImageTool.class, args);
+    }
+
+    /**
+     * Run the main method of mainClass with args in a new JVM started with jvmOptions.
+     *
+     * @return the lines printed to stdout that start with "= ", without that prefix
+     */
+    static List<String> run(Path dir, List<String> jvmOptions, Class<?> mainClass, String... args)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Djava.io.tmpdir=" + dir);
+        command.add("-Djava.awt.headless=true");
+        command.addAll(jvmOptions);
+        command.add(mainClass.getName());
+        command.addAll(Arrays.asList(args));
+
+        File errors = dir.resolve(mainClass.getSimpleName() + ".err").toFile();
+        Process process = new ProcessBuilder(command).redirectError(errors).start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        int exitCode = process.waitFor();
+        String output = out.toString("UTF-8");
+        if (exitCode != 0) {
+            throw new AssertionError(mainClass.getSimpleName() + " " + String.join(" ", args) + " exited with "
+                    + exitCode + ":\n" + output + new String(Files.readAllBytes(errors.toPath()), "UTF-8"));
+        }
+        List<String> results = new ArrayList<>();
+        for (String line : output.split("\r?\n")) {
+            if (line.startsWith("= ")) {
+                results.add(line.substring(2));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The value of the result "key value" printed by a run.
+     */
+    static String result(List<String> results, String key) {
+        for (String line : results) {
+            if (line.startsWith(key + " ")) {
+                return line.substring(key.length() + 1);
+            }
+        }
+        throw new AssertionError("No " + key + " in " + results);
+    }
+}